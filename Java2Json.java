@@ -18,17 +18,65 @@
 
 package com.mergebase.util;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.InputStreamReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Utility for converting back and forth between Java objects (Map, Collection, String, Number, Boolean, null) and JSON.
@@ -36,26 +84,101 @@ import java.util.Map;
 public class Java2Json {
 
     public static void main(String[] args) throws Exception {
-        FileInputStream fin = new FileInputStream(args[0]);
-        InputStreamReader isr = new InputStreamReader(fin, "UTF-8");
-        BufferedReader br = new BufferedReader(isr);
-        String line;
-        StringBuilder buf = new StringBuilder(1024);
-        while ((line = br.readLine()) != null) {
-            buf.append(line).append('\n');
-        }
-        Object o = parse(buf.toString());
-        System.out.write(format(o).getBytes("UTF-8"));
+        Object o = parseFile(Paths.get(args[0]));
+        write(o, System.out);
+        System.out.flush();
     }
 
     private int pos;
     private char[] json;
+    private int limit;
+
+    // Set instead of json[] when parsing UTF-8 directly:  the tokenizer sees each byte
+    // as a char (all JSON syntax is ASCII), and only nextUtf8String() decodes multi-byte sequences.
+    private byte[] bytes;
+
+    // A little-endian view of bytes[] for the SWAR scans (see skipAscii()).
+    private ByteBuffer words;
+
+    // Only set when parsing from a Reader, InputStream or direct ByteBuffers:  json[] (or bytes[])
+    // is then a window that fill() slides forward, and everything from 'mark' onwards
+    // (the token in progress) is kept across refills.
+    private Reader reader;
+    private InputStream in;
+    private ByteBuffer[] srcs;
+    private int srcIndex;
+    private int mark = -1;
+    private boolean inNumber;
+
+    // Reused for every string literal that needs unescaping.
+    private StringBuilder scratch;
+
+    // Reused for every key and string literal passed to a JsonHandler.
+    private Slice slice;
+
+    private Options opts = DEFAULTS;
+
+    // Canonical Strings for object keys:  the Options' shared table, or else one
+    // created on the first key of this parse (or a JsonReader's, see JsonReader.run()).
+    private SymbolTable keys;
+
+    // Only used by parseLazy():  two longs per JSON value, in document order.
+    // tape[i] = type << 56 | offset of the value in the input.
+    // tape[i + 1] = for MAP and LIST:  child count << 32 | tape index just past the container,
+    //               for STRING and NUMBER:  length of the literal,  for BOOLEAN:  1 if true.
+    private long[] tape;
+    private int tapeSize;
+
+    // Result of scanNumber():  longValue if it returned true, else doubleValue.
+    private long longValue;
+    private double doubleValue;
+
+    // The open containers, innermost last:  parseObject() keeps each one's Map or List
+    // in frames[], emit() and record() keep an int (its type, or its tape index) in levels[],
+    // and nextCborValue() keeps both (the container, and how many items it still expects).
+    private Object[] frames;
+    private int[] levels;
+    private int depth;
+
+    // The type of the element that nextArray() stopped at when it handed an
+    // unfinished array back to parseObject(), else -1.
+    private int pending = -1;
+
+    // Values parsed so far, and the limits from the Options.
+    private long tokens;
+    private int maxDepth = Integer.MAX_VALUE;
+    private int maxStringLength = Integer.MAX_VALUE;
+    private int maxNumberLength = Integer.MAX_VALUE;
+    private long maxTokens = Long.MAX_VALUE;
+
+    private Java2Json() {
+    }
 
     private Java2Json(int pos, char[] json) {
         this.pos = pos;
         this.json = json;
+        this.limit = json.length;
+    }
+
+    private Java2Json(byte[] bytes, int off, int len) {
+        this.bytes = bytes;
+        this.pos = off;
+        this.limit = off + len;
+    }
+
+    private Java2Json(InputStream in, ByteBuffer[] srcs, int windowSize) {
+        this.bytes = new byte[windowSize];
+        this.in = in;
+        this.srcs = srcs;
     }
 
+    private final static int WINDOW_SIZE = 8192;
+    private final static long MAPPED_REGION_SIZE = 1L << 30;
+    private final static int LINES_CHUNK_SIZE = 1 << 20;
+    private final static int PARALLEL_THRESHOLD = 1 << 20;
+    private final static int PARALLEL_SLICE_SIZE = 1 << 18;
+    private final static int MAX_RETAINED = 1 << 20;
+    private final static int MAX_BIND_DEPTH = 256;
     private final static Long ZERO = Long.valueOf("0");
     private final static int MAP = 0;
     private final static int LIST = 1;
@@ -63,9 +186,7 @@ public class Java2Json {
     private final static int NUMBER = 3;
     private final static int BOOLEAN = 5;
     private final static int NULL = 6;
-    private final static int MODE_WHITESPACE = -1;
-    private final static int MODE_NORMAL = 0;
-    private final static int MODE_BACKSLASH = 1;
+    private final static Options DEFAULTS = new Options();
 
     public static String makePretty(String ugly) {
         Object juliusJson = parse(ugly);
@@ -78,7 +199,7 @@ public class Java2Json {
         }
         json = json.trim();
         if ("".equals(json)) {
-            return new LinkedHashMap();
+            return new JsonMap();
         } else {
             return (Map) parse(json);
         }
@@ -99,7 +220,7 @@ public class Java2Json {
     /**
      * Converts a String of JSON into a Java representation,
      * parsing the result into a structure of nested
-     * Map, List, Boolean, Long, Double, String and null objects.
+     * Map (JsonMap), List, Boolean, Long, Double, String and null objects.
      *
      * @param json String to parse
      * @return A Java representation of the parsed JSON String
@@ -107,617 +228,6267 @@ public class Java2Json {
      * java.lang.Number, java.lang.String and null.
      */
     public static Object parse(String json) {
-        char[] c = json.toCharArray();
-        Java2Json p = new Java2Json(0, c);
+        return parse(json, DEFAULTS);
+    }
 
+    /**
+     * Converts a String of JSON into a Java representation (see parse(String)),
+     * using the supplied parse options.
+     *
+     * @param json String to parse
+     * @param opts parse options
+     * @return A Java representation of the parsed JSON String
+     */
+    public static Object parse(String json, Options opts) {
+        JsonReader r = reader();
         try {
-            int type = nextObject(p);
-            Object o = parseObject(type, p);
-            finalWhitespace(p);
-            return o;
-
-        } catch (RuntimeException re) {
-            int charsLeft = c.length - p.pos;
-            if (p.pos > 10) {
-                // System.out.println("NEAR: [" + new String(c, p.pos - 10, Math.min(10 + charsLeft, 20)));
-            } else {
-                // System.out.println("NEAR: [" + new String(c, 0, Math.min(10 + charsLeft, Math.min(20, c.length))));
-            }
-            throw re;
+            return r.parse(json, opts, null);
+        } finally {
+            r.inUse = false;
         }
     }
 
-    public static String format(Object o) {
-        return format(false, o);
-    }
-
     /**
-     * Formats a Java object into a JSON String.
+     * Parses JSON read from a Reader, the same as parse(String), but without
+     * ever holding the whole document in memory:  the Reader is consumed
+     * through a small fixed-size window that only grows when a single
+     * token (e.g., a very long string literal) does not fit inside it.
      * <p>
-     * Expects the Java object to be a java.util.Map, java.util.Collection,
-     * java.lang.String, java.lang.Number, java.lang.Boolean, or null, or
-     * nested structure of the above.  All other object types cause a
-     * RuntimeException to be thrown.
+     * The Reader is read to EOF (trailing whitespace is verified) but is not closed.
      *
-     * @param o Java object to convert into a JSON String.
-     * @return a valid JSON String
+     * @param reader Reader supplying the JSON text
+     * @return A Java representation of the parsed JSON (see parse(String)).
+     * @throws IOException if reading from the Reader fails
      */
-    public static String format(boolean pretty, Object o) {
-        StringBuilder buf = new StringBuilder(1024);
-        prettyPrint(pretty, o, 0, buf);
-        String s = buf.toString();
-        if (o instanceof Map) {
-            return "{" + s + "}";
-        } else if (o instanceof Collection || o instanceof Object[]) {
-            return "[" + s + "]";
-        } else {
-            return s;
-        }
+    public static Object parse(Reader reader) throws IOException {
+        return parse(reader, DEFAULTS);
     }
 
-    private static Object parseObject(int type, Java2Json p) {
-        switch (type) {
-            case MAP:
-                Map m = new LinkedHashMap();
-                while (hasNextItem(p, '}')) {
-                    String key = nextString(p);
-                    nextChar(p, ':');
-                    type = nextObject(p);
-                    Object obj = parseObject(type, p);
-                    m.put(key, obj);
-                }
-                return m;
-
-            case LIST:
-                ArrayList l = new ArrayList();
-                while (hasNextItem(p, ']')) {
-                    type = nextObject(p);
-                    Object obj = parseObject(type, p);
-                    l.add(obj);
-                }
-                return l;
-
-            case STRING:
-                return nextString(p);
+    public static Object parse(Reader reader, Options opts) throws IOException {
+        JsonReader r = reader();
+        try {
+            return r.parse(reader, opts, null);
+        } finally {
+            r.inUse = false;
+        }
+    }
 
-            case NUMBER:
-                return nextNumber(p);
+    /**
+     * Parses UTF-8 encoded JSON read from an InputStream.  See parse(Reader).
+     * <p>
+     * The InputStream is read to EOF but is not closed.
+     *
+     * @param in InputStream supplying UTF-8 encoded JSON
+     * @return A Java representation of the parsed JSON (see parse(String)).
+     * @throws IOException if reading from the InputStream fails
+     */
+    public static Object parse(InputStream in) throws IOException {
+        return parse(in, DEFAULTS);
+    }
 
-            case BOOLEAN:
-                return nextBoolean(p);
+    public static Object parse(InputStream in, Options opts) throws IOException {
+        JsonReader r = reader();
+        try {
+            return r.parse(in, opts, null);
+        } finally {
+            r.inUse = false;
+        }
+    }
 
-            case NULL:
-                return nextNull(p);
+    /**
+     * Parses UTF-8 encoded JSON directly from a byte array, without first
+     * decoding it into a String.  Bytes are only decoded inside string
+     * literals, and pure-ASCII literals become Strings without any
+     * intermediate char[] copy.
+     * <p>
+     * Malformed UTF-8 inside string literals is replaced with U+FFFD, the same
+     * as new String(bytes, UTF_8) would do.
+     *
+     * @param utf8 array holding the JSON
+     * @param off  offset of the first byte of JSON
+     * @param len  number of bytes of JSON
+     * @return A Java representation of the parsed JSON (see parse(String)).
+     */
+    public static Object parse(byte[] utf8, int off, int len) {
+        return parse(utf8, off, len, DEFAULTS);
+    }
 
-            default:
-                throw new RuntimeException("invalid type: " + type);
+    public static Object parse(byte[] utf8, int off, int len, Options opts) {
+        JsonReader r = reader();
+        try {
+            return r.parse(utf8, off, len, opts, null);
+        } finally {
+            r.inUse = false;
         }
     }
 
-    private static boolean hasNextItem(Java2Json p, char closingBracket) {
-        char prev = p.json[p.pos - 1];
-        boolean isMap = closingBracket == '}';
+    /**
+     * Parses the UTF-8 encoded JSON between the buffer's position and limit.
+     * See parse(byte[], int, int).  Heap buffers are parsed in place, and direct
+     * buffers are streamed through a small window.  The buffer's position is not changed.
+     *
+     * @param utf8 ByteBuffer holding the JSON
+     * @return A Java representation of the parsed JSON (see parse(String)).
+     */
+    public static Object parse(ByteBuffer utf8) {
+        return parse(utf8, DEFAULTS);
+    }
 
-        boolean nextCommaExists = nextChar(p, ',', false);
-        if (!nextCommaExists) {
-            p.pos--;
+    public static Object parse(ByteBuffer utf8, Options opts) {
+        JsonReader r = reader();
+        try {
+            return r.parse(utf8, opts, null);
+        } finally {
+            r.inUse = false;
         }
+    }
 
-        char c = p.json[p.pos];
-        if (c == closingBracket) {
-            p.pos++;
-            return false;
-        } else if (nextCommaExists) {
-            return true;
-        } else {
-            if (isMap && prev == '{') {
-                return true;
-            } else if (!isMap && prev == '[') {
-                return true;
-            }
-            throw new RuntimeException("expected whitespace or comma or " + closingBracket + " but found: " + c);
+    /**
+     * Parses JSON straight into an instance of the given class, without building
+     * the intermediate Maps and Lists.  The class can be:
+     * <ul>
+     * <li>A JavaBean (a no-arg constructor and setters), or a record (Java 16+),
+     * whose properties (or components) are bound recursively by name.  Unknown
+     * properties are skipped, and absent ones keep their default values.</li>
+     * <li>String, an enum (by constant name), Boolean, a primitive or its wrapper
+     * (integers must fit without loss), or Object (as parse(String)).</li>
+     * <li>An array, or a List, Set, Collection or Map with String keys, whose element
+     * types are taken from generic bean and record properties.</li>
+     * </ul>
+     * The binding code is generated once per class (with MethodHandles, cached in a
+     * ClassValue), so no reflection is done per call.
+     *
+     * @param json String to parse
+     * @param type class to bind the JSON to
+     * @return a new instance of type
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T parse(String json, Class<T> type) {
+        JsonReader r = reader();
+        try {
+            return (T) r.parse(json, DEFAULTS, type);
+        } finally {
+            r.inUse = false;
         }
     }
 
-    private static int nextObject(Java2Json p) {
-        for (int i = p.pos; i < p.json.length; i++) {
-            p.pos++;
-            char c = p.json[i];
-
-            if (!isWhitespace(c)) {
-                if (c == '"') {
-                    p.pos--;
-                    return STRING;
-                } else if (c == '{') {
-                    return MAP;
-                } else if (c == '[') {
-                    return LIST;
-                } else if (c == '-' || (c >= '0' && c <= '9')) {
-                    p.pos--;
-                    return NUMBER;
-                } else if (c == 'n') {
-                    p.pos--;
-                    return NULL;
-                } else if (c == 't' || c == 'f') {
-                    p.pos--;
-                    return BOOLEAN;
-                } else {
-                    throw new RuntimeException("Expected whitespace or JSON literal, but got: " + c);
-                }
-            }
+    @SuppressWarnings("unchecked")
+    public static <T> T parse(Reader reader, Class<T> type) throws IOException {
+        JsonReader r = reader();
+        try {
+            return (T) r.parse(reader, DEFAULTS, type);
+        } finally {
+            r.inUse = false;
         }
-        return -1; // there is no next object, so we're done
     }
 
-    private static void finalWhitespace(Java2Json p) {
-        for (int i = p.pos; i < p.json.length; i++) {
-            p.pos++;
-            char c = p.json[i];
-            if (!isWhitespace(c)) {
-                throw new RuntimeException("Expected whitespace or EOF but got: " + c);
-            }
+    @SuppressWarnings("unchecked")
+    public static <T> T parse(InputStream in, Class<T> type) throws IOException {
+        JsonReader r = reader();
+        try {
+            return (T) r.parse(in, DEFAULTS, type);
+        } finally {
+            r.inUse = false;
         }
-        return;
     }
 
-    private static boolean nextChar(Java2Json p, char charToFind) {
-        return nextChar(p, charToFind, true);
+    @SuppressWarnings("unchecked")
+    public static <T> T parse(byte[] utf8, int off, int len, Class<T> type) {
+        JsonReader r = reader();
+        try {
+            return (T) r.parse(utf8, off, len, DEFAULTS, type);
+        } finally {
+            r.inUse = false;
+        }
     }
 
-    private static boolean nextChar(Java2Json p, char charToFind, boolean doThrow) {
-        for (int i = p.pos; i < p.json.length; i++) {
-            p.pos++;
-            char c = p.json[i];
+    /**
+     * Parses JSON into a series of calls on the handler, without building any Maps
+     * or Lists.  Keys and string values are passed as CharSequences that view the
+     * input itself (or, for literals with escapes, the parser's scratch buffer), so
+     * nothing is allocated per value unless the handler asks for a String.  The
+     * CharSequence is reused for the next literal:  a handler that keeps one must
+     * copy it (e.g., with toString()).  Numbers arrive as longValue() or
+     * doubleValue(), exactly as parse() would make them a Long or a Double.
+     * <p>
+     * parse(String) is equivalent to parsing with a new TreeBuilder.
+     *
+     * @param json    String to parse
+     * @param handler receives the document's values, in order
+     */
+    public static void parse(String json, JsonHandler handler) {
+        JsonReader r = reader();
+        try {
+            r.parse(json, DEFAULTS, handler);
+        } finally {
+            r.inUse = false;
+        }
+    }
 
-            if (!isWhitespace(c)) {
-                if (c == charToFind) {
-                    return true;
-                } else {
-                    if (doThrow) {
-                        throw new RuntimeException("Expected whitespace or " + charToFind + " but got: " + c);
-                    } else {
-                        return false;
-                    }
-                }
-            }
+    public static void parse(Reader reader, JsonHandler handler) throws IOException {
+        JsonReader r = reader();
+        try {
+            r.parse(reader, DEFAULTS, handler);
+        } finally {
+            r.inUse = false;
         }
-        throw new RuntimeException("Never found " + charToFind);
     }
 
-    private static Object nextNull(Java2Json p) {
-        char c = p.json[p.pos++];
+    public static void parse(InputStream in, JsonHandler handler) throws IOException {
+        JsonReader r = reader();
         try {
-            if (c == 'n') {
-                c = p.json[p.pos++];
-                if (c == 'u') {
-                    c = p.json[p.pos++];
-                    if (c == 'l') {
-                        c = p.json[p.pos++];
-                        if (c == 'l') {
-                            return null;
-                        }
-                    }
-                }
-            }
-        } catch (ArrayIndexOutOfBoundsException aioobe) {
-            throw new RuntimeException("expected null literal but ran of out string to parse");
+            r.parse(in, DEFAULTS, handler);
+        } finally {
+            r.inUse = false;
         }
-        throw new RuntimeException("expected null literal but ran into bad character: " + c);
     }
 
-    private static Boolean nextBoolean(Java2Json p) {
-        char c = p.json[p.pos++];
+    public static void parse(byte[] utf8, int off, int len, JsonHandler handler) {
+        JsonReader r = reader();
         try {
-            if (c == 't') {
-                c = p.json[p.pos++];
-                if (c == 'r') {
-                    c = p.json[p.pos++];
-                    if (c == 'u') {
-                        c = p.json[p.pos++];
-                        if (c == 'e') {
-                            return Boolean.TRUE;
-                        }
-                    }
-                }
-            } else if (c == 'f') {
-                c = p.json[p.pos++];
-                if (c == 'a') {
-                    c = p.json[p.pos++];
-                    if (c == 'l') {
-                        c = p.json[p.pos++];
-                        if (c == 's') {
-                            c = p.json[p.pos++];
-                            if (c == 'e') {
-                                return Boolean.FALSE;
-                            }
-                        }
-                    }
-                }
-            }
-        } catch (ArrayIndexOutOfBoundsException aioobe) {
-            throw new RuntimeException("expected true/false literal but ran of out string to parse");
+            r.parse(utf8, off, len, DEFAULTS, handler);
+        } finally {
+            r.inUse = false;
         }
-        throw new RuntimeException("expected true/false literal but ran into bad character: " + c);
     }
 
-    private static Number nextNumber(Java2Json p) {
-        StringBuilder buf = new StringBuilder();
-        for (int i = p.pos; i < p.json.length; i++) {
-            p.pos++;
-            char c = p.json[i];
-            if (isWhitespace(c) || c == ',' || c == '}' || c == ']') {
-                p.pos--;
-                break;
-            } else if (c == '-' || c == '+' || c == 'e' || c == 'E' || c == '.' || (c >= '0' && c <= '9')) {
-                buf.append(c);
-            } else {
-                throw new RuntimeException("expected number but got: " + c);
+    /**
+     * Parses a UTF-8 encoded JSON file by memory-mapping it, so the file's
+     * contents are never copied into the heap (beyond the small window the
+     * tokenizer reads through).  Files larger than 1 GB are mapped as several
+     * consecutive regions, which lifts the 2 GB limit of a single mapping.
+     * <p>
+     * The mappings are released by the garbage collector once parsing completes.
+     *
+     * @param file JSON file to parse
+     * @return A Java representation of the parsed JSON (see parse(String)).
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public static Object parseFile(Path file) throws IOException {
+        return parseFile(file, DEFAULTS);
+    }
+
+    public static Object parseFile(Path file, Options opts) throws IOException {
+        ByteBuffer[] regions;
+        FileChannel fc = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = fc.size();
+            regions = new ByteBuffer[(int) Math.max(1, (size + MAPPED_REGION_SIZE - 1) / MAPPED_REGION_SIZE)];
+            for (int i = 0; i < regions.length; i++) {
+                long start = i * MAPPED_REGION_SIZE;
+                regions[i] = fc.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAPPED_REGION_SIZE, size - start));
             }
+        } finally {
+            fc.close();
         }
+        return parse(new Java2Json(null, regions, WINDOW_SIZE).with(opts));
+    }
 
-        String s = buf.toString();
-        char char0 = s.length() > 0 ? s.charAt(0) : '_';
-        if (char0 == '+') {
-            throw new RuntimeException("number literal cannot start with plus: " + s);
-        } else if ("-".equals(s)) {
-            throw new RuntimeException("number literal cannot be negative sign by itself");
+    /**
+     * Parses a String of JSON lazily.  A single pass validates the document's
+     * structure and records where every value sits in a compact tape (two longs
+     * per value).  The returned Map and List views decode their keys and values
+     * only when they are accessed (then cache them), so reading a few fields out
+     * of a large document costs little more than that one scan.
+     * <p>
+     * The views are read-only, and iterate in document order like the
+     * JsonMap and ArrayList from parse(String) (duplicate keys keep their
+     * first position and last value), to which they compare equal.  Because they
+     * decode on demand, they are not safe for concurrent use, even read-only,
+     * without external synchronization.  String and number literals are only
+     * fully validated when accessed, so malformed literals throw then.
+     *
+     * @param json String to parse
+     * @return a lazy Map or List view over the document, or the scalar value
+     * if the document is just a scalar.
+     */
+    public static Object parseLazy(String json) {
+        return parseLazy(new Java2Json(0, json.toCharArray()));
+    }
+
+    /**
+     * Lazily parses UTF-8 encoded JSON.  See parseLazy(String) and
+     * parse(byte[], int, int).  The views read from the array as they decode,
+     * so it must not be modified while they are in use.
+     *
+     * @param utf8 array holding the JSON
+     * @param off  offset of the first byte of JSON
+     * @param len  number of bytes of JSON
+     * @return a lazy Map or List view over the document, or the scalar value
+     */
+    public static Object parseLazy(byte[] utf8, int off, int len) {
+        if (off < 0 || len < 0 || off + len > utf8.length || off + len < 0) {
+            throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " length=" + utf8.length);
         }
-        boolean isNegative = char0 == '-';
+        return parseLazy(new Java2Json(utf8, off, len));
+    }
 
-        if (isNegative) {
-            s = s.substring(1);
+    private static Object parseLazy(Java2Json p) {
+        p.tape = new long[64];
+        int type = nextObject(p);
+        record(type, p);
+        finalWhitespace(p);
+        return p.lazyValue(0);
+    }
+
+    /**
+     * Extracts only the values at the given JSON Pointers (RFC 6901) from a String
+     * of JSON, e.g. "/safeVersions/0/v".  A "*" segment matches every member of an
+     * object or element of an array, e.g. "/safeVersions/*&#47;v".
+     * <p>
+     * The document is walked with the regular tokenizer, but values that no
+     * pointer can match are skipped by counting brackets and quotes, without
+     * building Maps, Lists, Strings or Numbers for them (and without validating
+     * their contents beyond that).  Only matched values are materialized.
+     * Since matching happens while streaming, a key that appears more than once
+     * in the same object matches every time, not just its last occurrence.
+     *
+     * @param json     String to extract from
+     * @param pointers up to 64 JSON Pointers ("" selects the whole document)
+     * @return a Map from each pointer to the List of values it matched, in document order.
+     */
+    @SuppressWarnings("rawtypes")
+    public static Map<String, List> extract(String json, String... pointers) {
+        return extract(new Java2Json(0, json.toCharArray()), pointers);
+    }
+
+    /**
+     * Extracts values from UTF-8 encoded JSON.  See extract(String, String...).
+     */
+    @SuppressWarnings("rawtypes")
+    public static Map<String, List> extract(byte[] utf8, int off, int len, String... pointers) {
+        if (off < 0 || len < 0 || off + len > utf8.length || off + len < 0) {
+            throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " length=" + utf8.length);
         }
+        return extract(new Java2Json(utf8, off, len), pointers);
+    }
 
-        if ("0".equals(s)) {
-            return ZERO;
+    /**
+     * Extracts values from UTF-8 encoded JSON read from an InputStream, which is
+     * read to EOF but not closed.  See extract(String, String...).
+     */
+    @SuppressWarnings("rawtypes")
+    public static Map<String, List> extract(InputStream in, String... pointers) throws IOException {
+        try {
+            return extract(new Java2Json(in, null, WINDOW_SIZE), pointers);
+        } catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
         }
+    }
 
-        if (s.startsWith(".")) {
-            throw new RuntimeException("number literal cannot start with decimal point: " + s);
+    @SuppressWarnings("rawtypes")
+    private static Map<String, List> extract(Java2Json p, String[] pointers) {
+        if (pointers.length > 64) {
+            throw new IllegalArgumentException("at most 64 pointers, got: " + pointers.length);
         }
-        if (!s.startsWith("0.") && !s.startsWith("0e") && !s.startsWith("0E")) {
-            if (s.startsWith("0")) {
-                throw new RuntimeException("number literal cannot have leading zero: " + s);
-            }
+        String[][] segments = new String[pointers.length][];
+        List[] results = new List[pointers.length];
+        Map<String, List> extracted = new LinkedHashMap<String, List>();
+        for (int i = 0; i < pointers.length; i++) {
+            segments[i] = pointerSegments(pointers[i]);
+            results[i] = new ArrayList();
+            extracted.put(pointers[i], results[i]);
         }
+        long all = pointers.length == 64 ? -1L : (1L << pointers.length) - 1;
+        int type = nextObject(p);
+        visit(p, type, 0, all, segments, results);
+        finalWhitespace(p);
+        return extracted;
+    }
 
-        if (contains(s, ".e") || contains(s, ".E")) {
-            throw new RuntimeException("number literal invalid exponential: " + s);
+    private static String[] pointerSegments(String pointer) {
+        if (pointer.isEmpty()) {
+            return new String[0];
+        } else if (pointer.charAt(0) != '/') {
+            throw new IllegalArgumentException("JSON Pointer must be empty or start with '/': " + pointer);
         }
-
-        if (s.endsWith("e") || s.endsWith("E") || s.endsWith("+") || s.endsWith("-") || s.endsWith(".")) {
-            throw new RuntimeException("number literal cannot end with [eE+-.] " + s);
+        String[] segments = pointer.substring(1).split("/", -1);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = segments[i].replace("~1", "/").replace("~0", "~");
         }
+        return segments;
+    }
 
-        int[] charCounts = charCounts(s);
-        int periods = charCounts[0];
-        int minuses = charCounts[1];
-        int plusses = charCounts[2];
-        int eTotal = charCounts[3];
-        int plussesAndMinuses = plusses + minuses;
-
-        if (plussesAndMinuses > 0) {
-            if (plussesAndMinuses > 1) {
-                throw new RuntimeException("invalid number literal - too many plusses/minuses: " + s);
+    /**
+     * Handles the value at 'depth' in the document, given the pointers whose
+     * first 'depth' segments matched the path to it:  materializes it for each
+     * pointer that ends here, descends into it for the others, or skips it.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static void visit(Java2Json p, int type, int depth, long matched, String[][] segments, List[] results) {
+        if (matched == 0) {
+            skipValue(type, p);
+            return;
+        }
+        long ending = 0;
+        for (long bits = matched; bits != 0; bits &= bits - 1) {
+            int i = Long.numberOfTrailingZeros(bits);
+            if (segments[i].length == depth) {
+                ending |= 1L << i;
+            }
+        }
+        long deeper = matched & ~ending;
+        if (ending != 0) {
+            Object val = parseObject(type, p);
+            for (long bits = ending; bits != 0; bits &= bits - 1) {
+                results[Long.numberOfTrailingZeros(bits)].add(val);
+            }
+            for (long bits = deeper; bits != 0; bits &= bits - 1) {
+                int i = Long.numberOfTrailingZeros(bits);
+                select(val, segments[i], depth, results[i]);
+            }
+        } else if (type == MAP) {
+            while (hasNextItem(p, '}')) {
+                String key = nextKey(p);
+                nextChar(p, ':');
+                visit(p, nextObject(p), depth + 1, matching(deeper, segments, depth, key, -1), segments, results);
+            }
+        } else if (type == LIST) {
+            int index = 0;
+            while (hasNextItem(p, ']')) {
+                visit(p, nextObject(p), depth + 1, matching(deeper, segments, depth, null, index++), segments, results);
+            }
+        } else {
+            skipValue(type, p);
+        }
+    }
+
+    /**
+     * @return the pointers among 'active' whose segment at 'depth' matches the
+     * object member 'key', or (when key is null) the array element 'index'.
+     */
+    private static long matching(long active, String[][] segments, int depth, String key, int index) {
+        long matched = 0;
+        for (long bits = active; bits != 0; bits &= bits - 1) {
+            int i = Long.numberOfTrailingZeros(bits);
+            String segment = segments[i][depth];
+            if ("*".equals(segment) || (key != null ? segment.equals(key) : isIndex(segment, index))) {
+                matched |= 1L << i;
+            }
+        }
+        return matched;
+    }
+
+    private static boolean isIndex(String segment, int index) {
+        int n = 0;
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            if (c < '0' || c > '9' || (i == 0 && c == '0' && segment.length() > 1) || n > (Integer.MAX_VALUE - 9) / 10) {
+                return false;
+            }
+            n = n * 10 + (c - '0');
+        }
+        return segment.length() > 0 && n == index;
+    }
+
+    /**
+     * extract() for pointers that continue below a value that was already materialized.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static void select(Object val, String[] segments, int depth, List results) {
+        if (depth == segments.length) {
+            results.add(val);
+            return;
+        }
+        String segment = segments[depth];
+        if (val instanceof Map) {
+            Map m = (Map) val;
+            if ("*".equals(segment)) {
+                for (Object child : m.values()) {
+                    select(child, segments, depth + 1, results);
+                }
+            } else if (m.containsKey(segment)) {
+                select(m.get(segment), segments, depth + 1, results);
+            }
+        } else if (val instanceof List) {
+            List l = (List) val;
+            for (int i = 0; i < l.size(); i++) {
+                if ("*".equals(segment) || isIndex(segment, i)) {
+                    select(l.get(i), segments, depth + 1, results);
+                }
+            }
+        }
+    }
+
+    /**
+     * Skips over a value without materializing it.  Objects and arrays are only
+     * checked for balanced brackets (outside of string literals).
+     */
+    private static void skipValue(int type, Java2Json p) {
+        switch (type) {
+            case MAP:
+            case LIST:
+                int depth = 1;
+                do {
+                    while (p.pos < p.limit) {
+                        char c = p.charAt(p.pos++);
+                        if (c == '"') {
+                            p.pos--;
+                            skipString(p);
+                        } else if (c == '{' || c == '[') {
+                            depth++;
+                        } else if ((c == '}' || c == ']') && --depth == 0) {
+                            return;
+                        }
+                    }
+                } while (p.fill());
+                throw new RuntimeException("never found closing bracket");
+            case STRING:
+                skipString(p);
+                return;
+            case NUMBER:
+                skipNumber(p);
+                return;
+            case BOOLEAN:
+                nextBoolean(p);
+                return;
+            case NULL:
+                nextNull(p);
+                return;
+            default:
+                throw new RuntimeException("invalid type: " + type);
+        }
+    }
+
+    /**
+     * Parses JSON Lines (NDJSON):  UTF-8 text holding one JSON value per line.
+     * The input is cut into chunks of about 1 MB at newline boundaries, and the
+     * chunks are parsed in parallel on the common ForkJoinPool while the
+     * returned Stream delivers the values in their original order.  At most two
+     * chunks per core are read ahead, so memory use stays bounded however large
+     * the input is.  Reading ahead stops while the InputStream has nothing
+     * available(), and a chunk is cut at its last complete line, so values from a
+     * socket or pipe are delivered as their lines arrive.
+     * <p>
+     * Blank lines are skipped.  A line that fails to parse makes the Stream throw
+     * a RuntimeException naming its line number once the values before it have
+     * been delivered.  The InputStream is not closed.
+     *
+     * @param in InputStream supplying UTF-8 encoded JSON Lines
+     * @return an ordered, sequential Stream of the parsed values
+     */
+    public static Stream<Object> parseLines(InputStream in) {
+        LineIterator it = new LineIterator(in);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED), false).onClose(it);
+    }
+
+    /**
+     * Parses a JSON Lines (NDJSON) file.  See parseLines(InputStream).  The file is
+     * closed once the Stream is exhausted or closed.
+     *
+     * @param file JSON Lines file to parse
+     * @return an ordered, sequential Stream of the parsed values
+     * @throws IOException if the file cannot be opened
+     */
+    public static Stream<Object> parseLines(Path file) throws IOException {
+        final InputStream in = Files.newInputStream(file);
+        LineIterator it = new LineIterator(in);
+        it.closeInput = true;
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED), false).onClose(it);
+    }
+
+    /**
+     * Points a reused instance at new input (keeping its scratch buffer and symbol table).
+     */
+    private Java2Json reset(char[] json, byte[] bytes, int pos, int limit) {
+        this.json = json;
+        this.bytes = bytes;
+        this.pos = pos;
+        this.limit = limit;
+        this.reader = null;
+        this.in = null;
+        this.srcs = null;
+        this.srcIndex = 0;
+        this.mark = -1;
+        this.inNumber = false;
+        if (words != null && words.array() != bytes) {
+            words = null;
+        }
+        if (slice != null) {
+            slice.set("");
+        }
+        // A parse that failed part way leaves its containers in frames[].
+        if (depth > 0 || (frames != null && frames.length > 1024)) {
+            frames = null;
+            levels = null;
+        }
+        this.depth = 0;
+        this.pending = -1;
+        return this;
+    }
+
+    private Java2Json with(Options opts) {
+        this.opts = opts;
+        this.keys = opts.keys;
+        this.values = opts.values;
+        this.tokens = 0;
+        this.maxDepth = opts.maxDepth;
+        this.maxStringLength = opts.maxStringLength;
+        this.maxNumberLength = opts.maxNumberLength;
+        this.maxTokens = opts.maxTokens;
+        return this;
+    }
+
+    // Options.values(), if any.
+    private StringPool values;
+
+    // The root of the key shapes of parsed objects (see Shape), kept across parses.
+    private Shape shapes;
+    private int shapeCount;
+
+    private Shape shapes() {
+        if (shapes == null) {
+            shapes = new Shape(JsonMap.EMPTY, null);
+        }
+        return shapes;
+    }
+
+    // The symbol table for object keys, made when the first key is parsed.
+    private SymbolTable keys() {
+        if (keys == null) {
+            keys = new SymbolTable();
+        }
+        return keys;
+    }
+
+    private void enter() {
+        if (++depth > maxDepth) {
+            throw limitException("nesting depth", maxDepth, "");
+        }
+    }
+
+    private Object exit(Object o) {
+        depth--;
+        return o;
+    }
+
+    // enter() for bind(), which recurses:  without a maxDepth, it stops at MAX_BIND_DEPTH.
+    private void enterBinding() {
+        enter();
+        if (depth > MAX_BIND_DEPTH && maxDepth == Integer.MAX_VALUE) {
+            throw limitException("nesting depth", MAX_BIND_DEPTH, " when binding");
+        }
+    }
+
+    private void push(Object container) {
+        enter();
+        if (frames == null || depth > frames.length) {
+            frames = frames == null ? new Object[16] : Arrays.copyOf(frames, frames.length * 2);
+        }
+        frames[depth - 1] = container;
+    }
+
+    // Keeps container and level as the innermost frame, once enter() has counted it.
+    private void frame(Object container, int level) {
+        if (frames == null || depth > frames.length) {
+            frames = frames == null ? new Object[16] : Arrays.copyOf(frames, frames.length * 2);
+        }
+        frames[depth - 1] = container;
+        if (levels == null || depth > levels.length) {
+            levels = levels == null ? new int[16] : Arrays.copyOf(levels, levels.length * 2);
+        }
+        levels[depth - 1] = level;
+    }
+
+    private void push(int level) {
+        enter();
+        if (levels == null || depth > levels.length) {
+            levels = levels == null ? new int[16] : Arrays.copyOf(levels, levels.length * 2);
+        }
+        levels[depth - 1] = level;
+    }
+
+    private void countToken() {
+        if (++tokens > maxTokens) {
+            throw limitException("document", maxTokens, " values");
+        }
+    }
+
+    private static void checkStringLength(Java2Json p, int length) {
+        if (length > p.maxStringLength) {
+            throw limitException("string literal", p.maxStringLength, " chars");
+        }
+    }
+
+    // Kept out of the checks above so that they stay small enough to inline.
+    private static RuntimeException limitException(String what, long limit, String unit) {
+        return new RuntimeException(what + " exceeds the limit of " + limit + unit);
+    }
+
+    private static Object parse(Java2Json p, Type type) {
+        if (type == null || type == Object.class) {
+            return parse(p);
+        }
+        Object o = bind(nextObject(p), p, type);
+        finalWhitespace(p);
+        return o;
+    }
+
+    private static void parse(Java2Json p, JsonHandler handler) {
+        int type = nextObject(p);
+        emit(type, p, handler);
+        finalWhitespace(p);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static Object parse(Java2Json p) {
+        if (p.opts.parallel && p.reader == null && p.in == null && p.srcs == null && p.limit - p.pos >= PARALLEL_THRESHOLD) {
+            Java2Json q = new Java2Json().reset(p.json, p.bytes, p.pos, p.limit);
+            List l = parseParallel(q.with(p.opts));
+            if (l != null) {
+                return l;
+            }
+        }
+        int type = nextObject(p);
+        Object o = parseObject(type, p);
+        finalWhitespace(p);
+        return o;
+    }
+
+    /**
+     * Parses a large top-level array with fork/join:  a quick scan (tracking only
+     * string, escape and bracket state) cuts the array into slices of about
+     * PARALLEL_SLICE_SIZE at top-level commas, the slices are parsed concurrently
+     * in place, and their elements are joined in order.
+     *
+     * @return the parsed List, or null if the document is not an array or is not
+     * valid, in which case the caller parses it sequentially (so errors are always
+     * reported exactly as a sequential parse reports them).
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static List parseParallel(final Java2Json p) {
+        try {
+            if (nextObject(p) != LIST) {
+                return null;
+            }
+            List<int[]> slices = new ArrayList<int[]>();
+            int sliceStart = p.pos;
+            int depth = 0;
+            boolean inString = false;
+            int end = -1;
+            for (int i = p.pos; i < p.limit; i++) {
+                char c = p.charAt(i);
+                if (inString) {
+                    if (c == '\\') {
+                        i++;
+                    } else if (c == '"') {
+                        inString = false;
+                    }
+                } else if (c == '"') {
+                    inString = true;
+                } else if (c == '[' || c == '{') {
+                    depth++;
+                } else if (c == ']' || c == '}') {
+                    if (depth == 0) {
+                        end = i;
+                        break;
+                    }
+                    depth--;
+                } else if (c == ',' && depth == 0 && i - sliceStart >= PARALLEL_SLICE_SIZE) {
+                    slices.add(new int[]{sliceStart, i});
+                    sliceStart = i + 1;
+                }
+            }
+            if (end < 0 || slices.isEmpty()) {
+                return null;
+            }
+            slices.add(new int[]{sliceStart, end});
+
+            List<ForkJoinTask<List>> tasks = new ArrayList<ForkJoinTask<List>>(slices.size());
+            final long[] tokens = new long[slices.size()];
+            for (int i = 0; i < slices.size(); i++) {
+                final int[] slice = slices.get(i);
+                final int task = i;
+                tasks.add(ForkJoinPool.commonPool().submit(() -> {
+                    Java2Json q = new Java2Json().reset(p.json, p.bytes, slice[0], slice[1]).with(p.opts);
+                    q.depth = 1;
+                    List part = parseSlice(q);
+                    tokens[task] = q.tokens;
+                    return part;
+                }));
+            }
+            List[] parts = new List[tasks.size()];
+            int size = 0;
+            long total = 1;
+            try {
+                for (int i = 0; i < parts.length; i++) {
+                    parts[i] = tasks.get(i).join();
+                    size += parts[i].size();
+                    total += tokens[i];
+                }
+            } finally {
+                for (ForkJoinTask<List> task : tasks) {
+                    task.cancel(false);
+                }
+            }
+            if (total > p.maxTokens) {
+                return null;
+            }
+            ArrayList l = new ArrayList(size);
+            for (List part : parts) {
+                l.addAll(part);
+            }
+            p.pos = end + 1;
+            finalWhitespace(p);
+            return p.opts.primitiveArrays ? toPrimitiveList(l) : l;
+        } catch (RuntimeException re) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses the comma separated array elements between pos and limit.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static List parseSlice(Java2Json p) {
+        ArrayList l = new ArrayList();
+        while (true) {
+            int type = nextObject(p);
+            if (type < 0) {
+                throw new RuntimeException("expected array element");
+            }
+            l.add(parseObject(type, p));
+            while (p.pos < p.limit && isWhitespace(p.charAt(p.pos))) {
+                p.pos++;
+            }
+            if (p.pos == p.limit) {
+                return l;
+            } else if (p.charAt(p.pos++) != ',') {
+                throw new RuntimeException("expected comma between array elements");
+            }
+        }
+    }
+
+    /**
+     * Slides the window forward when parsing from a Reader, InputStream or
+     * direct ByteBuffer.  Everything from 'mark' (or else from the char just
+     * before 'pos', since hasNextItem() looks one char back) is kept, and the
+     * rest of the window is refilled.
+     *
+     * @return true if at least one more char is now available at pos.
+     */
+    private boolean fill() {
+        if (reader == null && in == null && srcs == null) {
+            return false;
+        }
+        int keep = mark >= 0 ? mark : Math.max(0, pos - 1);
+        int kept = limit - keep;
+        int capacity = bytes != null ? bytes.length : json.length;
+        if (keep > 0) {
+            if (bytes != null) {
+                System.arraycopy(bytes, keep, bytes, 0, kept);
+            } else {
+                System.arraycopy(json, keep, json, 0, kept);
+            }
+        } else if (kept == capacity) {
+            // The token in progress fills the window:  grow it, unless the token is
+            // already over its limit (a string literal decodes to at least 1 char per 6).
+            if (mark >= 0 && inNumber) {
+                checkNumberLength(this, capacity);
+            } else if (mark >= 0) {
+                checkStringLength(this, capacity / 6);
+            }
+            if (bytes != null) {
+                bytes = Arrays.copyOf(bytes, capacity * 2);
+            } else {
+                json = Arrays.copyOf(json, capacity * 2);
+            }
+        }
+        pos -= keep;
+        if (mark >= 0) {
+            mark -= keep;
+        }
+        limit = kept;
+        try {
+            int n;
+            if (reader != null) {
+                do {
+                    n = reader.read(json, limit, json.length - limit);
+                } while (n == 0);
+            } else if (in != null) {
+                do {
+                    n = in.read(bytes, limit, bytes.length - limit);
+                } while (n == 0);
+            } else {
+                while (!srcs[srcIndex].hasRemaining() && srcIndex + 1 < srcs.length) {
+                    srcs[srcIndex++] = null;
+                }
+                ByteBuffer src = srcs[srcIndex];
+                n = Math.min(src.remaining(), bytes.length - limit);
+                src.get(bytes, limit, n);
+                if (n == 0) {
+                    n = -1;
+                }
+            }
+            if (n < 0) {
+                reader = null;
+                in = null;
+                srcs = null;
+                return false;
+            }
+            limit += n;
+            return true;
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    private char charAt(int i) {
+        return bytes != null ? (char) (bytes[i] & 0xFF) : json[i];
+    }
+
+    private static boolean more(Java2Json p) {
+        return p.pos < p.limit || p.fill();
+    }
+
+    /**
+     * @return the char at pos (without consuming it), or -1 at the end of input.
+     */
+    private static int peek(Java2Json p) {
+        return p.pos < p.limit || p.fill() ? p.charAt(p.pos) : -1;
+    }
+
+    private static char read(Java2Json p) {
+        if (p.pos < p.limit || p.fill()) {
+            return p.charAt(p.pos++);
+        }
+        throw new ArrayIndexOutOfBoundsException(p.pos);
+    }
+
+    public static String format(Object o) {
+        return format(false, o);
+    }
+
+    /**
+     * Formats a Java object into a JSON String.
+     * <p>
+     * Expects the Java object to be a java.util.Map, java.util.Collection,
+     * java.lang.String, java.lang.Number, java.lang.Boolean, or null, or
+     * nested structure of the above.  All other object types cause a
+     * RuntimeException to be thrown.
+     * <p>
+     * Arrays are written as JSON arrays, and JavaBeans and records (other than
+     * the JDK's own classes) as JSON objects of their readable properties.
+     * Other objects are written as strings (String.valueOf()).
+     *
+     * @param o Java object to convert into a JSON String.
+     * @return a valid JSON String
+     */
+    public static String format(boolean pretty, Object o) {
+        JsonWriter w = writer();
+        try {
+            return w.format(pretty, o);
+        } finally {
+            w.inUse = false;
+        }
+    }
+
+    public static void format(Object o, Appendable out) throws IOException {
+        format(false, o, out);
+    }
+
+    /**
+     * Formats a Java object as JSON (see format(boolean, Object)), writing it
+     * to an Appendable as it goes instead of building a String.  At most a few
+     * KB of output are buffered before being handed to the Appendable, so the
+     * whole document never needs to be in memory.  A StringBuilder is appended
+     * to directly.
+     *
+     * @param pretty true to indent the output
+     * @param o      Java object to convert into JSON.
+     * @param out    where to write the JSON
+     * @throws IOException if the Appendable throws it
+     */
+    public static void format(boolean pretty, Object o, Appendable out) throws IOException {
+        JsonWriter w = writer();
+        try {
+            w.format(pretty, o, out);
+        } finally {
+            w.inUse = false;
+        }
+    }
+
+    public static void write(Object o, OutputStream out) throws IOException {
+        write(false, o, out);
+    }
+
+    /**
+     * Writes a Java object as UTF-8 encoded JSON to an OutputStream.
+     * See format(boolean, Object, Appendable).  The OutputStream is not closed.
+     *
+     * @param pretty true to indent the output
+     * @param o      Java object to convert into JSON.
+     * @param out    where to write the JSON
+     * @throws IOException if writing to the OutputStream fails
+     */
+    public static void write(boolean pretty, Object o, OutputStream out) throws IOException {
+        JsonWriter w = writer();
+        try {
+            w.write(pretty, o, out);
+        } finally {
+            w.inUse = false;
+        }
+    }
+
+    /**
+     * Encodes a Java object as CBOR (RFC 8949), the binary equivalent of format().
+     * Objects are converted exactly as format() converts them, so that
+     * parseCbor(toCbor(o)) equals parse(format(o)):  integers become CBOR integers,
+     * doubles become CBOR floats (single precision when that is exact), a Float
+     * becomes the double its Float.toString() denotes (0.1f is 0.1), Maps become
+     * CBOR maps with String keys, and so on.  As with write(), unpaired surrogates
+     * in Strings become '?'.
+     *
+     * @param o Java object to encode
+     * @return the CBOR encoding of o
+     */
+    public static byte[] toCbor(Object o) {
+        JsonWriter w = writer();
+        try {
+            return w.toCbor(o);
+        } finally {
+            w.inUse = false;
+        }
+    }
+
+    /**
+     * Writes a Java object to an OutputStream as CBOR (see toCbor()), through a small
+     * buffer.  The OutputStream is not closed.
+     *
+     * @param o   Java object to encode
+     * @param out where to write the CBOR
+     * @throws IOException if writing to the OutputStream fails
+     */
+    public static void writeCbor(Object o, OutputStream out) throws IOException {
+        JsonWriter w = writer();
+        try {
+            w.writeCbor(o, out);
+        } finally {
+            w.inUse = false;
+        }
+    }
+
+    /**
+     * Decodes one CBOR (RFC 8949) data item into the same Java representation
+     * parse() produces:  Maps are JsonMaps (in encoded order), integers
+     * are Longs (or Doubles, if too large for a long), floats are Doubles.
+     * CBOR types JSON does not have are converted as RFC 8949 section 6.1
+     * suggests:  byte strings become base64url Strings, bignums become numbers,
+     * other tags are dropped, non-String map keys become Strings, and undefined
+     * and other simple values become null.
+     * <p>
+     * The Options' symbol table and primitiveArrays() are honoured.
+     *
+     * @param cbor array holding the CBOR
+     * @param off  offset of the data item
+     * @param len  number of bytes (the data item must use all of them)
+     * @return A Java representation of the CBOR (see parse(String)).
+     */
+    public static Object parseCbor(byte[] cbor, int off, int len) {
+        return parseCbor(cbor, off, len, DEFAULTS);
+    }
+
+    public static Object parseCbor(byte[] cbor, int off, int len, Options opts) {
+        if (off < 0 || len < 0 || off + len > cbor.length || off + len < 0) {
+            throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " length=" + cbor.length);
+        }
+        return parseCbor(new Java2Json(cbor, off, len).with(opts));
+    }
+
+    /**
+     * Decodes one CBOR data item read from an InputStream (see parseCbor(byte[], int, int)),
+     * through a small window.  The InputStream is read to EOF but is not closed.
+     *
+     * @param in InputStream supplying the CBOR
+     * @return A Java representation of the CBOR (see parse(String)).
+     * @throws IOException if reading from the InputStream fails
+     */
+    public static Object parseCbor(InputStream in) throws IOException {
+        return parseCbor(in, DEFAULTS);
+    }
+
+    public static Object parseCbor(InputStream in, Options opts) throws IOException {
+        try {
+            return parseCbor(new Java2Json(in, null, WINDOW_SIZE).with(opts));
+        } catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+    }
+
+    private static Object parseCbor(Java2Json p) {
+        Object o = nextCborValue(p);
+        if (more(p)) {
+            throw new RuntimeException("expected end of CBOR input but got: 0x" + Integer.toHexString(p.bytes[p.pos] & 0xFF));
+        }
+        return o;
+    }
+
+    // What nextCbor() returns for the "break" stop code that ends indefinite-length items.
+    private final static Object CBOR_BREAK = new Object();
+
+    // What nextCbor() returns once it has pushed a frame for an array, map or tag.
+    private final static Object CBOR_OPEN = new Object();
+
+    // The frame of a tag that is skipped:  its one item is passed on to the frame below.
+    private final static Object CBOR_TAG = new Object();
+
+    /**
+     * Decodes one data item.  As in parseObject(), nested items do not recurse:  each
+     * open array, map or skipped tag is a frame in p.frames, with the number of items
+     * (or key/value pairs) it still expects in p.levels, or -1 if it is indefinite-length.
+     */
+    private static Object nextCborValue(Java2Json p) {
+        final int base = p.depth;
+        // By frame:  the key that a map's next value goes under, while that value is open.
+        String[] keys = null;
+        Object value = nextCbor(p);
+        while (p.depth > base) {
+            int d = p.depth - 1;
+            Object container = p.frames[d];
+            if (container instanceof ArrayList) {
+                value = cborFillList((ArrayList) container, value, p);
+            } else if (container instanceof JsonMap) {
+                if (keys == null || d - base >= keys.length) {
+                    keys = Arrays.copyOf(keys == null ? new String[0] : keys, Math.max(16, 2 * (d - base)));
+                }
+                value = cborFillMap((JsonMap) container, value, keys, d - base, p);
+            } else if (value == CBOR_OPEN) {
+                value = nextCbor(p);
+            } else if (value == CBOR_BREAK) {
+                throw new RuntimeException("unexpected CBOR break");
+            } else {
+                // The tag's item is passed on to the frame below.
+                p.frames[--p.depth] = null;
+            }
+        }
+        if (value == CBOR_BREAK) {
+            throw new RuntimeException("unexpected CBOR break");
+        }
+        return value;
+    }
+
+    /**
+     * Adds value (unless it is CBOR_OPEN, for a frame just opened) to the innermost
+     * frame's List, then reads items into it up to its end, or up to an item that
+     * opens a new frame.
+     *
+     * @return the complete List, or CBOR_OPEN if it stopped at a new frame
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static Object cborFillList(ArrayList l, Object value, Java2Json p) {
+        final int d = p.depth - 1;
+        int left = p.levels[d];
+        while (true) {
+            if (value == CBOR_BREAK) {
+                if (left >= 0) {
+                    throw new RuntimeException("unexpected CBOR break");
+                }
+                return cborClose(p);
+            } else if (value != CBOR_OPEN) {
+                l.add(value);
+                if (left > 0 && --left == 0) {
+                    return cborClose(p);
+                }
+            }
+            value = nextCbor(p);
+            if (value == CBOR_OPEN) {
+                p.levels[d] = left;
+                return value;
+            }
+        }
+    }
+
+    /**
+     * cborFillList() for the innermost frame's Map:  value is its next key, or the
+     * value for keys[k], the key read before the value's frame was opened.
+     */
+    private static Object cborFillMap(JsonMap m, Object value, String[] keys, int k, Java2Json p) {
+        final int d = p.depth - 1;
+        int left = p.levels[d];
+        String key = value == CBOR_OPEN ? null : keys[k];
+        while (true) {
+            if (value == CBOR_BREAK) {
+                throw new RuntimeException("unexpected CBOR break");
+            } else if (value != CBOR_OPEN) {
+                if (key == null) {
+                    // A key that is not text.
+                    key = String.valueOf(value);
+                } else {
+                    m.put(key, value);
+                    key = null;
+                    if (left > 0 && --left == 0) {
+                        return cborClose(p);
+                    }
+                }
+            }
+            if (key == null) {
+                cborNeed(p, 1);
+                if (left < 0 && (p.bytes[p.pos] & 0xFF) == 0xFF) {
+                    p.pos++;
+                    return cborClose(p);
+                }
+                key = cborKey(p);
+            }
+            // The value for key, or (if key is still null) the key itself.
+            value = nextCbor(p);
+            if (value == CBOR_OPEN) {
+                keys[k] = key;
+                p.levels[d] = left;
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Called after p.enter() for an array, map or tag.
+     *
+     * @return CBOR_OPEN, with container made a frame that expects size items
+     * (-1 if indefinite-length), or the container itself if size is 0
+     */
+    private static Object cborOpen(Java2Json p, Object container, int size) {
+        if (size == 0) {
+            return p.exit(container);
+        }
+        p.frame(container, size);
+        return CBOR_OPEN;
+    }
+
+    /**
+     * Pops the innermost frame, an array or map that is complete.
+     */
+    private static Object cborClose(Java2Json p) {
+        Object container = p.frames[--p.depth];
+        p.frames[p.depth] = null;
+        return container instanceof ArrayList ? cborList(p, (ArrayList) container) : container;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static Object nextCbor(Java2Json p) {
+        cborNeed(p, 1);
+        p.countToken();
+        int initial = p.bytes[p.pos++] & 0xFF;
+        int major = initial >>> 5;
+        int info = initial & 0x1F;
+        if (major == 7) {
+            return cborSimple(p, info);
+        } else if (info == 31) {
+            return cborIndefinite(p, major);
+        }
+        long arg = cborArgument(p, info);
+        switch (major) {
+            case 0:
+                if (arg >= 0) {
+                    return Long.valueOf(arg);
+                }
+                return Double.valueOf((arg >>> 1) * 2.0 + (arg & 1));
+            case 1:
+                if (arg >= 0) {
+                    return Long.valueOf(-1 - arg);
+                }
+                return Double.valueOf(-1 - ((arg >>> 1) * 2.0 + (arg & 1)));
+            case 2:
+                return Base64.getUrlEncoder().withoutPadding().encodeToString(cborBytes(p, cborLength(arg)));
+            case 3:
+                int len = cborLength(arg);
+                checkStringLength(p, len / 3);
+                cborNeed(p, len);
+                String s = new String(p.bytes, p.pos, len, StandardCharsets.UTF_8);
+                checkStringLength(p, s.length());
+                p.pos += len;
+                return s;
+            case 4:
+                p.enter();
+                int size = cborLength(arg);
+                return cborOpen(p, new ArrayList(Math.min(size, 1024)), size);
+            case 5:
+                p.enter();
+                return cborOpen(p, new JsonMap(), cborLength(arg));
+            default:
+                // Tags:  only bignums (2 and 3) change how the item is read.
+                if (arg == 2 || arg == 3) {
+                    cborNeed(p, 1);
+                    int next = p.bytes[p.pos] & 0xFF;
+                    if (next >>> 5 == 2 && (next & 0x1F) != 31) {
+                        p.pos++;
+                        BigInteger n = new BigInteger(1, cborBytes(p, cborLength(cborArgument(p, next & 0x1F))));
+                        if (arg == 3) {
+                            n = n.not();
+                        }
+                        return n.bitLength() < 64 ? (Object) Long.valueOf(n.longValue()) : (Object) Double.valueOf(n.doubleValue());
+                    }
+                }
+                // Other tags are skipped, but count as a level of nesting.
+                p.enter();
+                return cborOpen(p, CBOR_TAG, 1);
+        }
+    }
+
+    private static Object cborSimple(Java2Json p, int info) {
+        switch (info) {
+            case 20:
+                return Boolean.FALSE;
+            case 21:
+                return Boolean.TRUE;
+            case 24:
+                cborNeed(p, 1);
+                p.pos++;
+                return null;
+            case 25:
+                int half = (int) cborArgument(p, info);
+                int exp = (half >>> 10) & 0x1F;
+                int mantissa = half & 0x3FF;
+                double d;
+                if (exp == 0) {
+                    d = Math.scalb((double) mantissa, -24);
+                } else if (exp != 31) {
+                    d = Math.scalb((double) (mantissa + 1024), exp - 25);
+                } else {
+                    d = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+                }
+                return Double.valueOf((half & 0x8000) != 0 ? -d : d);
+            case 26:
+                return Double.valueOf(Float.intBitsToFloat((int) cborArgument(p, info)));
+            case 27:
+                return Double.valueOf(Double.longBitsToDouble(cborArgument(p, info)));
+            case 28:
+            case 29:
+            case 30:
+                throw new RuntimeException("invalid CBOR simple value: " + info);
+            case 31:
+                return CBOR_BREAK;
+            default:
+                return null;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static Object cborIndefinite(Java2Json p, int major) {
+        switch (major) {
+            case 2:
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                for (Object chunk; (chunk = cborChunk(p, major)) != CBOR_BREAK; ) {
+                    bytes.write((byte[]) chunk, 0, ((byte[]) chunk).length);
+                }
+                return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+            case 3:
+                StringBuilder text = new StringBuilder();
+                for (Object chunk; (chunk = cborChunk(p, major)) != CBOR_BREAK; ) {
+                    text.append((String) chunk);
+                    checkStringLength(p, text.length());
+                }
+                return text.toString();
+            case 4:
+                p.enter();
+                return cborOpen(p, new ArrayList(), -1);
+            case 5:
+                p.enter();
+                return cborOpen(p, new JsonMap(), -1);
+            default:
+                throw new RuntimeException("invalid indefinite-length CBOR major type: " + major);
+        }
+    }
+
+    /**
+     * @return the next definite-length chunk of an indefinite-length byte string
+     * (as a byte[]) or text string (as a String), or CBOR_BREAK.
+     */
+    private static Object cborChunk(Java2Json p, int major) {
+        cborNeed(p, 1);
+        int initial = p.bytes[p.pos++] & 0xFF;
+        if (initial == 0xFF) {
+            return CBOR_BREAK;
+        } else if (initial >>> 5 != major || (initial & 0x1F) == 31) {
+            throw new RuntimeException("invalid chunk in indefinite-length CBOR string: 0x" + Integer.toHexString(initial));
+        }
+        byte[] b = cborBytes(p, cborLength(cborArgument(p, initial & 0x1F)));
+        return major == 2 ? b : new String(b, StandardCharsets.UTF_8);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static List cborList(Java2Json p, ArrayList l) {
+        return p.opts.primitiveArrays && !l.isEmpty() ? toPrimitiveList(l) : l;
+    }
+
+    /**
+     * Map keys:  ASCII text goes through the symbol table, like nextKey().  Keys that
+     * are not definite-length text are left to nextCborValue(), which makes Strings of
+     * them with String.valueOf().
+     *
+     * @return the text key at pos, or null (having consumed nothing) if it is not text
+     */
+    private static String cborKey(Java2Json p) {
+        cborNeed(p, 1);
+        int initial = p.bytes[p.pos] & 0xFF;
+        if (initial >>> 5 != 3 || (initial & 0x1F) == 31) {
+            return null;
+        }
+        p.pos++;
+        int len = cborLength(cborArgument(p, initial & 0x1F));
+        checkStringLength(p, len / 3);
+        cborNeed(p, len);
+        final byte[] bytes = p.bytes;
+        final int start = p.pos;
+        final int end = start + len;
+        p.pos = end;
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            byte b = bytes[i];
+            if (b < 0) {
+                String key = new String(bytes, start, len, StandardCharsets.UTF_8);
+                checkStringLength(p, key.length());
+                return key;
+            }
+            hash = 31 * hash + b;
+        }
+        checkStringLength(p, len);
+        return p.keys().lookup(bytes, start, len, hash);
+    }
+
+    private static long cborArgument(Java2Json p, int info) {
+        if (info < 24) {
+            return info;
+        } else if (info > 27) {
+            throw new RuntimeException("invalid CBOR additional information: " + info);
+        }
+        int n = 1 << (info - 24);
+        cborNeed(p, n);
+        long arg = 0;
+        for (int i = 0; i < n; i++) {
+            arg = arg << 8 | (p.bytes[p.pos++] & 0xFF);
+        }
+        return arg;
+    }
+
+    private static int cborLength(long arg) {
+        if (arg < 0 || arg > Integer.MAX_VALUE - 8) {
+            throw new RuntimeException("CBOR length too large: " + Long.toUnsignedString(arg));
+        }
+        return (int) arg;
+    }
+
+    private static byte[] cborBytes(Java2Json p, int len) {
+        cborNeed(p, len);
+        byte[] b = Arrays.copyOfRange(p.bytes, p.pos, p.pos + len);
+        p.pos += len;
+        return b;
+    }
+
+    /**
+     * Makes sure the next n bytes are in the window (growing it if need be).
+     */
+    private static void cborNeed(Java2Json p, int n) {
+        if (p.limit - p.pos < n) {
+            p.mark = p.pos;
+            try {
+                while (p.limit - p.pos < n) {
+                    if (!p.fill()) {
+                        throw new RuntimeException("unexpected end of CBOR input");
+                    }
+                }
+            } finally {
+                p.mark = -1;
+            }
+        }
+    }
+
+    // One JsonReader and JsonWriter per platform thread, behind the static methods.
+    private final static ThreadLocal<JsonReader> READERS = new ThreadLocal<JsonReader>();
+    private final static ThreadLocal<JsonWriter> WRITERS = new ThreadLocal<JsonWriter>();
+
+    // Thread.isVirtual() on Java 21+, else null.
+    private final static MethodHandle IS_VIRTUAL = isVirtualHandle();
+
+    private static MethodHandle isVirtualHandle() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException roe) {
+            return null;
+        }
+    }
+
+    /**
+     * Virtual threads are cheap and short-lived, so they get no pooled instances
+     * (which would only pin buffers to each of possibly millions of threads).
+     */
+    private static boolean isVirtualThread() {
+        try {
+            return IS_VIRTUAL != null && (boolean) IS_VIRTUAL.invokeExact(Thread.currentThread());
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    /**
+     * @return this thread's pooled JsonReader, marked in use (the caller must clear
+     * inUse when done), or a new one if the pooled one is already in use (e.g.,
+     * parse() called from inside a Reader that is being parsed).
+     */
+    private static JsonReader reader() {
+        if (isVirtualThread()) {
+            return new JsonReader();
+        }
+        JsonReader r = READERS.get();
+        if (r == null) {
+            r = new JsonReader();
+            READERS.set(r);
+        } else if (r.inUse) {
+            return new JsonReader();
+        }
+        r.inUse = true;
+        return r;
+    }
+
+    /**
+     * @return this thread's pooled JsonWriter (see reader()).
+     */
+    private static JsonWriter writer() {
+        if (isVirtualThread()) {
+            return new JsonWriter();
+        }
+        JsonWriter w = WRITERS.get();
+        if (w == null) {
+            w = new JsonWriter();
+            WRITERS.set(w);
+        } else if (w.inUse) {
+            return new JsonWriter();
+        }
+        w.inUse = true;
+        return w;
+    }
+
+    /**
+     * @param sink if not null, receives the contents of buf (which is then cleared)
+     *             whenever buf grows past WINDOW_SIZE.
+     */
+    private static void format(boolean pretty, Object o, StringBuilder buf, Appendable sink) {
+        o = jsonView(o);
+        if (o instanceof Map) {
+            buf.append('{');
+            prettyPrint(pretty, o, 0, buf, sink);
+            buf.append('}');
+        } else if (o instanceof Collection || o instanceof Object[]) {
+            buf.append('[');
+            prettyPrint(pretty, o, 0, buf, sink);
+            buf.append(']');
+        } else {
+            prettyPrint(pretty, o, 0, buf, sink);
+        }
+    }
+
+    /**
+     * parseObject() for parse(String, Class):  parses the value straight into the target type.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static Object bind(int type, Java2Json p, Type target) {
+        Class raw = rawClass(target);
+        if (raw == Object.class || type == NULL) {
+            return parseObject(type, p);
+        }
+        p.countToken();
+        switch (type) {
+            case MAP:
+                // Binding follows the target type, so it recurses:  enterBinding() bounds it.
+                p.enterBinding();
+                if (raw.isAssignableFrom(LinkedHashMap.class)) {
+                    Type keyType = typeArgument(target, 0);
+                    if (keyType != Object.class && keyType != String.class) {
+                        throw new RuntimeException("cannot bind object to " + target.getTypeName() + ":  keys must be Strings");
+                    }
+                    Type valueType = typeArgument(target, 1);
+                    Map m = new LinkedHashMap();
+                    while (hasNextItem(p, '}')) {
+                        String key = nextKey(p);
+                        nextChar(p, ':');
+                        m.put(key, bind(nextObject(p), p, valueType));
+                    }
+                    return p.exit(m);
+                }
+                Codec codec = CODECS.get(raw);
+                if (codec.creator == null) {
+                    throw new RuntimeException("cannot bind object to " + raw.getName());
+                }
+                return p.exit(codec.read(p));
+
+            case LIST:
+                p.enterBinding();
+                Collection c;
+                Type elementType;
+                if (raw.isArray()) {
+                    c = new ArrayList();
+                    elementType = target instanceof GenericArrayType
+                            ? ((GenericArrayType) target).getGenericComponentType() : raw.getComponentType();
+                } else if (raw.isAssignableFrom(ArrayList.class)) {
+                    c = new ArrayList();
+                    elementType = typeArgument(target, 0);
+                } else if (raw.isAssignableFrom(LinkedHashSet.class)) {
+                    c = new LinkedHashSet();
+                    elementType = typeArgument(target, 0);
+                } else {
+                    throw new RuntimeException("cannot bind array to " + raw.getName());
+                }
+                while (hasNextItem(p, ']')) {
+                    c.add(bind(nextObject(p), p, elementType));
+                }
+                if (raw.isArray()) {
+                    Object array = Array.newInstance(raw.getComponentType(), c.size());
+                    int i = 0;
+                    for (Object o : c) {
+                        if (o != null || !raw.getComponentType().isPrimitive()) {
+                            Array.set(array, i, o);
+                        }
+                        i++;
+                    }
+                    return p.exit(array);
+                }
+                return p.exit(c);
+
+            case STRING:
+                String s = nextString(p);
+                if (raw.isInstance(s)) {
+                    return s;
+                } else if (raw.isEnum()) {
+                    return Enum.valueOf(raw, s);
+                } else if ((raw == char.class || raw == Character.class) && s.length() == 1) {
+                    return s.charAt(0);
+                }
+                throw new RuntimeException("cannot bind string \"" + s + "\" to " + raw.getName());
+
+            case NUMBER:
+                return bindNumber(nextNumber(p), raw);
+
+            case BOOLEAN:
+                Boolean b = nextBoolean(p);
+                if (raw == boolean.class || raw.isInstance(b)) {
+                    return b;
+                }
+                throw new RuntimeException("cannot bind " + b + " to " + raw.getName());
+
+            default:
+                return parseObject(type, p);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static Object bindNumber(Number n, Class raw) {
+        if (raw == long.class || raw == Long.class) {
+            if (n instanceof Long) {
+                return n;
+            }
+        } else if (raw == int.class || raw == Integer.class) {
+            if (n instanceof Long && n.longValue() == n.intValue()) {
+                return n.intValue();
+            }
+        } else if (raw == short.class || raw == Short.class) {
+            if (n instanceof Long && n.longValue() == n.shortValue()) {
+                return n.shortValue();
+            }
+        } else if (raw == byte.class || raw == Byte.class) {
+            if (n instanceof Long && n.longValue() == n.byteValue()) {
+                return n.byteValue();
+            }
+        } else if (raw == double.class || raw == Double.class) {
+            return n.doubleValue();
+        } else if (raw == float.class || raw == Float.class) {
+            return n.floatValue();
+        } else if (raw.isInstance(n)) {
+            return n;
+        }
+        throw new RuntimeException("cannot bind number " + n + " to " + raw.getName());
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static Class rawClass(Type type) {
+        if (type instanceof Class) {
+            return (Class) type;
+        } else if (type instanceof ParameterizedType) {
+            return rawClass(((ParameterizedType) type).getRawType());
+        } else if (type instanceof GenericArrayType) {
+            return Array.newInstance(rawClass(((GenericArrayType) type).getGenericComponentType()), 0).getClass();
+        } else if (type instanceof TypeVariable) {
+            return rawClass(((TypeVariable) type).getBounds()[0]);
+        } else if (type instanceof WildcardType) {
+            return rawClass(((WildcardType) type).getUpperBounds()[0]);
+        }
+        return Object.class;
+    }
+
+    private static Type typeArgument(Type type, int i) {
+        if (type instanceof ParameterizedType) {
+            Type[] args = ((ParameterizedType) type).getActualTypeArguments();
+            if (i < args.length) {
+                return args[i];
+            }
+        }
+        return Object.class;
+    }
+
+    /**
+     * Parses a value into Maps, Lists, Strings, Numbers, Booleans and nulls.  Nested
+     * objects and arrays do not recurse:  each open container is a frame in p.frames,
+     * so the depth of the input is only limited by Options.maxDepth() (and memory),
+     * not by the thread's stack.
+     */
+    private static Object parseObject(int type, Java2Json p) {
+        p.countToken();
+        if (type != MAP && type != LIST) {
+            return parseValue(type, p);
+        }
+        final int base = p.depth;
+        Object root = open(type, p);
+        while (p.depth > base) {
+            Object container = p.frames[p.depth - 1];
+            boolean opened = container instanceof JsonMap
+                    ? fillMap((JsonMap) container, p)
+                    : fillList((ArrayList) container, p);
+            if (!opened) {
+                p.frames[--p.depth] = null;
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Parses members into the innermost frame's Map up to its closing brace, or up
+     * to a member whose value is a container, which is opened as a new frame.
+     *
+     * @return true if it stopped at a new frame
+     */
+    private static boolean fillMap(JsonMap m, Java2Json p) {
+        while (hasNextItem(p, '}')) {
+            Shape next = m.shape != null ? m.shape.next : null;
+            String key;
+            if (next != null && next.plain && matchKey(p, next.key)) {
+                key = next.key;
+            } else {
+                key = nextKey(p);
+                next = null;
+            }
+            nextChar(p, ':');
+            int type = nextObject(p);
+            p.countToken();
+            boolean opened = type == MAP || type == LIST;
+            Object value = opened ? open(type, p) : parseValue(type, p);
+            if (next != null) {
+                m.append(next, value);
+            } else {
+                putMember(m, key, value, p);
+            }
+            if (opened) {
+                return true;
+            }
+        }
+        m.shape = null;
+        return false;
+    }
+
+    /**
+     * m.put(key, value) for fillMap():  a key new to m moves it on to the child shape.
+     */
+    private static void putMember(JsonMap m, String key, Object value, Java2Json p) {
+        Shape shape = m.shape;
+        if (shape != null) {
+            int i = m.find(key);
+            if (i >= 0) {
+                m.values[i] = value;
+                return;
+            }
+            Shape next = shape.child(key, p);
+            if (next != null) {
+                m.append(next, value);
+                return;
+            }
+        }
+        m.put(key, value);
+    }
+
+    /**
+     * Consumes the (whitespace and) key literal at pos if it is exactly the predicted
+     * key, a plain one (see Shape).  Anything else, including a literal that runs past
+     * the input window or over maxStringLength(), is left to nextKey().
+     */
+    private static boolean matchKey(Java2Json p, String key) {
+        final int end = p.limit;
+        int i = p.pos;
+        while (i < end && isWhitespace(p.charAt(i))) {
+            i++;
+        }
+        final int n = key.length();
+        if (end - i < n + 2 || n > p.maxStringLength) {
+            return false;
+        }
+        if (p.bytes != null) {
+            final byte[] bytes = p.bytes;
+            if (bytes[i] != '"' || bytes[i + n + 1] != '"') {
+                return false;
+            }
+            for (int j = 0; j < n; j++) {
+                if (bytes[i + 1 + j] != key.charAt(j)) {
+                    return false;
+                }
+            }
+        } else {
+            final char[] json = p.json;
+            if (json[i] != '"' || json[i + n + 1] != '"') {
+                return false;
+            }
+            for (int j = 0; j < n; j++) {
+                if (json[i + 1 + j] != key.charAt(j)) {
+                    return false;
+                }
+            }
+        }
+        p.pos = i + n + 2;
+        return true;
+    }
+
+    /**
+     * fillMap() for the innermost frame's List.
+     */
+    private static boolean fillList(ArrayList l, Java2Json p) {
+        boolean more = p.pending >= 0 || hasNextItem(p, ']');
+        while (more) {
+            int type;
+            if (p.pending >= 0) {
+                type = p.pending;
+                p.pending = -1;
+            } else {
+                type = nextObject(p);
+            }
+            p.countToken();
+            if (type == MAP || type == LIST) {
+                l.add(open(type, p));
+                return true;
+            }
+            l.add(parseValue(type, p));
+            more = hasNextItem(p, ']');
+        }
+        return false;
+    }
+
+    /**
+     * @return a new Map or List for parseObject() to fill in, pushed as a frame
+     * (or, under Options.primitiveArrays(), possibly an already complete array).
+     */
+    private static Object open(int type, Java2Json p) {
+        if (type == MAP) {
+            Map m = new JsonMap(p.shapes());
+            p.push(m);
+            return m;
+        } else if (p.opts.primitiveArrays && !p.opts.lazyNumbers) {
+            return nextArray(p);
+        }
+        ArrayList l = new ArrayList();
+        p.push(l);
+        return l;
+    }
+
+    private static Object parseValue(int type, Java2Json p) {
+        switch (type) {
+            case STRING:
+                return nextString(p);
+
+            case NUMBER:
+                return p.opts.lazyNumbers ? nextJsonNumber(p) : nextNumber(p);
+
+            case BOOLEAN:
+                return nextBoolean(p);
+
+            case NULL:
+                return nextNull(p);
+
+            default:
+                throw new RuntimeException("invalid type: " + type);
+        }
+    }
+
+    /**
+     * parseObject() for a JsonHandler:  the same walk over the input, but each value
+     * is passed to the handler instead of being built.  The open containers' types
+     * are kept in p.levels.
+     */
+    private static void emit(int type, Java2Json p, JsonHandler handler) {
+        final int base = p.depth;
+        while (true) {
+            p.countToken();
+            switch (type) {
+                case MAP:
+                    p.push(MAP);
+                    handler.startObject();
+                    break;
+
+                case LIST:
+                    p.push(LIST);
+                    handler.startArray();
+                    break;
+
+                case STRING:
+                    handler.string(nextSlice(p));
+                    break;
+
+                case NUMBER:
+                    if (scanNumber(p)) {
+                        handler.longValue(p.longValue);
+                    } else {
+                        handler.doubleValue(p.doubleValue);
+                    }
+                    break;
+
+                case BOOLEAN:
+                    handler.bool(nextBoolean(p));
+                    break;
+
+                case NULL:
+                    nextNull(p);
+                    handler.nullValue();
+                    break;
+
+                default:
+                    throw new RuntimeException("invalid type: " + type);
+            }
+
+            // Close the containers that end here, up to the one with a next item.
+            while (true) {
+                if (p.depth == base) {
+                    return;
+                } else if (p.levels[p.depth - 1] == MAP) {
+                    if (hasNextItem(p, '}')) {
+                        handler.key(nextSlice(p));
+                        nextChar(p, ':');
+                        break;
+                    }
+                    handler.endObject();
+                } else {
+                    if (hasNextItem(p, ']')) {
+                        break;
+                    }
+                    handler.endArray();
+                }
+                p.depth--;
+            }
+            type = nextObject(p);
+        }
+    }
+
+    /**
+     * parseObject() for a LIST with Options.primitiveArrays():  numbers go straight
+     * into a long[] (widened to a double[] at the first decimal) until some other
+     * value turns up, at which point the elements so far are boxed into an ArrayList
+     * that is pushed as a frame for parseObject() to finish (starting with the
+     * element of type p.pending, unless that is -1).
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static List nextArray(Java2Json p) {
+        p.enter();
+        long[] longs = new long[8];
+        double[] doubles = null;
+        BitSet integers = null;
+        int size = 0;
+        while (hasNextItem(p, ']')) {
+            int type = nextObject(p);
+            boolean isLong = false;
+            if (type == NUMBER) {
+                p.countToken();
+                isLong = scanNumber(p);
+                if (isLong) {
+                    long value = p.longValue;
+                    if (doubles == null) {
+                        if (size == longs.length) {
+                            longs = Arrays.copyOf(longs, size * 2);
+                        }
+                        longs[size++] = value;
+                        continue;
+                    } else if (isExactDouble(value)) {
+                        if (size == doubles.length) {
+                            doubles = Arrays.copyOf(doubles, size * 2);
+                        }
+                        integers.set(size);
+                        doubles[size++] = value;
+                        continue;
+                    }
+                } else {
+                    if (doubles == null && isExactDouble(longs, size)) {
+                        doubles = new double[longs.length];
+                        for (int i = 0; i < size; i++) {
+                            doubles[i] = longs[i];
+                        }
+                        integers = new BitSet();
+                        integers.set(0, size);
+                        longs = null;
+                    }
+                    if (doubles != null) {
+                        if (size == doubles.length) {
+                            doubles = Arrays.copyOf(doubles, size * 2);
+                        }
+                        doubles[size++] = p.doubleValue;
+                        continue;
+                    }
+                }
+            }
+
+            // Not (or no longer) a homogeneous numeric array.
+            ArrayList l = new ArrayList(Math.max(size * 2, 10));
+            for (int i = 0; i < size; i++) {
+                if (doubles == null) {
+                    l.add(Long.valueOf(longs[i]));
+                } else if (integers.get(i)) {
+                    l.add(Long.valueOf((long) doubles[i]));
+                } else {
+                    l.add(Double.valueOf(doubles[i]));
+                }
+            }
+            if (type != NUMBER) {
+                p.pending = type;
+            } else if (isLong) {
+                l.add(Long.valueOf(p.longValue));
+            } else {
+                l.add(Double.valueOf(p.doubleValue));
+            }
+            p.depth--;
+            p.push(l);
+            return l;
+        }
+        p.depth--;
+        if (size == 0) {
+            return new ArrayList();
+        } else if (doubles != null) {
+            return new DoubleList(size == doubles.length ? doubles : Arrays.copyOf(doubles, size));
+        } else {
+            return new LongList(size == longs.length ? longs : Arrays.copyOf(longs, size));
+        }
+    }
+
+    /**
+     * nextArray()'s result for elements that were parsed boxed.
+     */
+    @SuppressWarnings("rawtypes")
+    private static List toPrimitiveList(List l) {
+        boolean decimal = false;
+        for (Object o : l) {
+            if (o instanceof Double) {
+                decimal = true;
+            } else if (!(o instanceof Long)) {
+                return l;
+            }
+        }
+        if (decimal) {
+            double[] doubles = new double[l.size()];
+            for (int i = 0; i < doubles.length; i++) {
+                Number n = (Number) l.get(i);
+                if (n instanceof Long && !isExactDouble(n.longValue())) {
+                    return l;
+                }
+                doubles[i] = n.doubleValue();
+            }
+            return new DoubleList(doubles);
+        } else {
+            long[] longs = new long[l.size()];
+            for (int i = 0; i < longs.length; i++) {
+                longs[i] = (Long) l.get(i);
+            }
+            return new LongList(longs);
+        }
+    }
+
+    // Longs within +/-2^53 survive the trip through a double.
+    private static boolean isExactDouble(long value) {
+        return value >= -(1L << 53) && value <= 1L << 53;
+    }
+
+    private static boolean isExactDouble(long[] values, int size) {
+        for (int i = 0; i < size; i++) {
+            if (!isExactDouble(values[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * parseObject() for parseLazy():  walks the value and appends it (and its
+     * children) to the tape instead of building it.
+     */
+    private static void record(int type, Java2Json p) {
+        final int base = p.depth;
+        int start;
+        while (true) {
+            p.countToken();
+            switch (type) {
+                case MAP:
+                case LIST:
+                    // The open container's child count is kept in its second tape slot.
+                    p.push(p.addToTape(type, p.pos - 1, 0));
+                    break;
+
+                case STRING:
+                    start = skipString(p);
+                    checkStringLength(p, p.pos - start - 2);
+                    p.addToTape(STRING, start, p.pos - start);
+                    break;
+
+                case NUMBER:
+                    start = p.pos;
+                    skipNumber(p);
+                    checkNumberLength(p, p.pos - start);
+                    p.addToTape(NUMBER, start, p.pos - start);
+                    break;
+
+                case BOOLEAN:
+                    p.addToTape(BOOLEAN, p.pos, nextBoolean(p) ? 1 : 0);
+                    break;
+
+                case NULL:
+                    p.addToTape(NULL, p.pos, 0);
+                    nextNull(p);
+                    break;
+
+                default:
+                    throw new RuntimeException("invalid type: " + type);
+            }
+
+            while (true) {
+                if (p.depth == base) {
+                    return;
+                }
+                int at = p.levels[p.depth - 1];
+                boolean isMap = (int) (p.tape[at] >>> 56) == MAP;
+                if (hasNextItem(p, isMap ? '}' : ']')) {
+                    if (isMap) {
+                        start = skipString(p);
+                        checkStringLength(p, p.pos - start - 2);
+                        p.addToTape(STRING, start, p.pos - start);
+                        nextChar(p, ':');
+                    }
+                    p.tape[at + 1]++;
+                    break;
+                }
+                p.tape[at + 1] = (p.tape[at + 1] << 32) | p.tapeSize;
+                p.depth--;
+            }
+            type = nextObject(p);
+        }
+    }
+
+    private int addToTape(int type, int offset, int value) {
+        if (tapeSize + 2 > tape.length) {
+            tape = Arrays.copyOf(tape, tape.length * 2);
+        }
+        int at = tapeSize;
+        tape[at] = ((long) type << 56) | offset;
+        tape[at + 1] = value;
+        tapeSize += 2;
+        return at;
+    }
+
+    /**
+     * Skips a string literal without decoding it.
+     *
+     * @return offset of the literal's opening quote
+     */
+    private static int skipString(Java2Json p) {
+        openQuote(p);
+        p.mark = p.pos - 1;
+        do {
+            final int end = p.limit;
+            int i = p.pos;
+            if (p.bytes != null) {
+                final byte[] bytes = p.bytes;
+                for (i = skipAscii(p, i, end); i < end; i++) {
+                    byte b = bytes[i];
+                    if (b == '"') {
+                        break;
+                    } else if (b == '\\') {
+                        i++;
+                    }
+                }
+            } else {
+                final char[] json = p.json;
+                for (; i < end; i++) {
+                    char c = json[i];
+                    if (c == '"') {
+                        break;
+                    } else if (c == '\\') {
+                        i++;
+                    }
+                }
+            }
+            if (i < end) {
+                int start = p.mark;
+                p.pos = i + 1;
+                p.mark = -1;
+                return start;
+            }
+            p.pos = i;
+        } while (p.fill());
+        throw new RuntimeException("never found literal string terminator \"");
+    }
+
+    /**
+     * Skips a number literal without converting it, checking only its characters.
+     */
+    private static void skipNumber(Java2Json p) {
+        do {
+            final int end = p.limit;
+            for (int i = p.pos; i < end; i++) {
+                char c = p.charAt(i);
+                if (c == '-' || c == '+' || c == 'e' || c == 'E' || c == '.' || (c >= '0' && c <= '9')) {
+                    continue;
+                }
+                p.pos = i;
+                if (isNumberEnd(c)) {
+                    return;
+                }
+                throw new RuntimeException("expected number but got: " + c);
+            }
+            p.pos = end;
+        } while (p.fill());
+    }
+
+    private int tapeNext(int i) {
+        int type = (int) (tape[i] >>> 56);
+        return type == MAP || type == LIST ? (int) tape[i + 1] : i + 2;
+    }
+
+    private int tapeCount(int i) {
+        return (int) (tape[i + 1] >>> 32);
+    }
+
+    /**
+     * Decodes the value recorded at tape[i], wrapping containers in lazy views.
+     */
+    private Object lazyValue(int i) {
+        int type = (int) (tape[i] >>> 56);
+        pos = (int) tape[i];
+        switch (type) {
+            case MAP:
+                return new LazyMap(this, i);
+            case LIST:
+                return new LazyList(this, i);
+            case STRING:
+                return nextString(this);
+            case NUMBER:
+                return nextNumber(this);
+            case BOOLEAN:
+                return tape[i + 1] != 0 ? Boolean.TRUE : Boolean.FALSE;
+            default:
+                return null;
+        }
+    }
+
+    private String lazyKey(int i) {
+        pos = (int) tape[i];
+        return nextKey(this);
+    }
+
+    private static boolean hasNextItem(Java2Json p, char closingBracket) {
+        char prev = p.charAt(p.pos - 1);
+        boolean isMap = closingBracket == '}';
+
+        boolean nextCommaExists = nextChar(p, ',', false);
+        if (!nextCommaExists) {
+            p.pos--;
+        }
+
+        if (!more(p)) {
+            throw new ArrayIndexOutOfBoundsException(p.pos);
+        }
+        char c = p.charAt(p.pos);
+        if (c == closingBracket) {
+            p.pos++;
+            return false;
+        } else if (nextCommaExists) {
+            return true;
+        } else {
+            if (isMap && prev == '{') {
+                return true;
+            } else if (!isMap && prev == '[') {
+                return true;
+            }
+            throw new RuntimeException("expected whitespace or comma or " + closingBracket + " but found: " + c);
+        }
+    }
+
+    private static int nextObject(Java2Json p) {
+        while (more(p)) {
+            char c = read(p);
+
+            if (!isWhitespace(c)) {
+                if (c == '"') {
+                    p.pos--;
+                    return STRING;
+                } else if (c == '{') {
+                    return MAP;
+                } else if (c == '[') {
+                    return LIST;
+                } else if (c == '-' || (c >= '0' && c <= '9')) {
+                    p.pos--;
+                    return NUMBER;
+                } else if (c == 'n') {
+                    p.pos--;
+                    return NULL;
+                } else if (c == 't' || c == 'f') {
+                    p.pos--;
+                    return BOOLEAN;
+                } else {
+                    throw new RuntimeException("Expected whitespace or JSON literal, but got: " + c);
+                }
+            }
+        }
+        return -1; // there is no next object, so we're done
+    }
+
+    private static void finalWhitespace(Java2Json p) {
+        while (more(p)) {
+            char c = read(p);
+            if (!isWhitespace(c)) {
+                throw new RuntimeException("Expected whitespace or EOF but got: " + c);
+            }
+        }
+        return;
+    }
+
+    private static boolean nextChar(Java2Json p, char charToFind) {
+        return nextChar(p, charToFind, true);
+    }
+
+    private static boolean nextChar(Java2Json p, char charToFind, boolean doThrow) {
+        while (more(p)) {
+            char c = read(p);
+
+            if (!isWhitespace(c)) {
+                if (c == charToFind) {
+                    return true;
+                } else {
+                    if (doThrow) {
+                        throw new RuntimeException("Expected whitespace or " + charToFind + " but got: " + c);
+                    } else {
+                        return false;
+                    }
+                }
+            }
+        }
+        throw new RuntimeException("Never found " + charToFind);
+    }
+
+    private static Object nextNull(Java2Json p) {
+        char c = read(p);
+        try {
+            if (c == 'n') {
+                c = read(p);
+                if (c == 'u') {
+                    c = read(p);
+                    if (c == 'l') {
+                        c = read(p);
+                        if (c == 'l') {
+                            return null;
+                        }
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException aioobe) {
+            throw new RuntimeException("expected null literal but ran of out string to parse");
+        }
+        throw new RuntimeException("expected null literal but ran into bad character: " + c);
+    }
+
+    private static Boolean nextBoolean(Java2Json p) {
+        char c = read(p);
+        try {
+            if (c == 't') {
+                c = read(p);
+                if (c == 'r') {
+                    c = read(p);
+                    if (c == 'u') {
+                        c = read(p);
+                        if (c == 'e') {
+                            return Boolean.TRUE;
+                        }
+                    }
+                }
+            } else if (c == 'f') {
+                c = read(p);
+                if (c == 'a') {
+                    c = read(p);
+                    if (c == 'l') {
+                        c = read(p);
+                        if (c == 's') {
+                            c = read(p);
+                            if (c == 'e') {
+                                return Boolean.FALSE;
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException aioobe) {
+            throw new RuntimeException("expected true/false literal but ran of out string to parse");
+        }
+        throw new RuntimeException("expected true/false literal but ran into bad character: " + c);
+    }
+
+    /**
+     * Parses a number literal in a single pass, validating it against the
+     * JSON (RFC 8259) grammar while accumulating its digits, so no text is
+     * copied for the common cases:
+     * <ul>
+     * <li>Integers that fit in a long become a long.</li>
+     * <li>Decimals with at most 18 significant digits and a decimal exponent within
+     * +/-22 become a double by one exact multiplication or division, which is
+     * correctly rounded since both operands are exactly representable.</li>
+     * <li>Everything else (long overflow, very long or very large/small decimals)
+     * falls back to Double.parseDouble on the literal's text.</li>
+     * </ul>
+     *
+     * @return true if the literal was parsed into p.longValue, false if into p.doubleValue
+     */
+    private static boolean scanNumber(Java2Json p) {
+        p.mark = p.pos;
+        p.inNumber = true;
+        int c = peek(p);
+        boolean isNegative = c == '-';
+        if (isNegative) {
+            p.pos++;
+            c = peek(p);
+            if (c < 0 || isNumberEnd(c)) {
+                throw new RuntimeException("number literal cannot be negative sign by itself");
+            }
+        }
+
+        // Integer part:  accumulated negatively, since -Long.MIN_VALUE does not fit in a long.
+        long value = 0;
+        boolean overflow = false;
+        final long limit = isNegative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        if (c == '0') {
+            p.pos++;
+            c = peek(p);
+            if (c >= '0' && c <= '9') {
+                p.pos++;
+                throw numberException(p, "number literal cannot have leading zero");
+            }
+        } else if (c >= '1' && c <= '9') {
+            do {
+                int digit = c - '0';
+                if (value < Long.MIN_VALUE / 10 || value * 10 < limit + digit) {
+                    overflow = true;
+                } else {
+                    value = value * 10 - digit;
+                }
+                p.pos++;
+                c = peek(p);
+            } while (c >= '0' && c <= '9');
+        } else {
+            throw numberException(p, c == '.' ? "number literal cannot start with decimal point" : "invalid number literal");
+        }
+
+        if (c != '.' && c != 'e' && c != 'E') {
+            checkNumberEnd(p, c);
+            if (overflow) {
+                p.doubleValue = Double.parseDouble(numberText(p));
+                p.mark = -1;
+                p.inNumber = false;
+                return false;
+            }
+            p.mark = -1;
+            p.inNumber = false;
+            p.longValue = isNegative ? value : -value;
+            return true;
+        }
+
+        // Decimal:  gather up to 18 significant digits (plus a decimal exponent) for the fast path.
+        long mantissa = overflow ? 0 : -value;
+        int significantDigits = mantissa == 0 ? 0 : (int) Math.log10(mantissa) + 1;
+        int exp10 = 0;
+        boolean exact = !overflow;
+        if (c == '.') {
+            p.pos++;
+            c = peek(p);
+            if (c < '0' || c > '9') {
+                throw numberException(p, "number literal invalid decimal point");
+            }
+            do {
+                if (significantDigits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa > 0) {
+                        significantDigits++;
+                    }
+                    exp10--;
+                } else if (c != '0') {
+                    exact = false;
+                }
+                p.pos++;
+                c = peek(p);
+            } while (c >= '0' && c <= '9');
+        }
+        if (c == 'e' || c == 'E') {
+            p.pos++;
+            c = peek(p);
+            boolean negativeExp = c == '-';
+            if (c == '-' || c == '+') {
+                p.pos++;
+                c = peek(p);
+            }
+            if (c < '0' || c > '9') {
+                throw numberException(p, "number literal invalid exponential");
+            }
+            int exp = 0;
+            do {
+                if (exp < 100000) {
+                    exp = exp * 10 + (c - '0');
+                }
+                p.pos++;
+                c = peek(p);
+            } while (c >= '0' && c <= '9');
+            exp10 += negativeExp ? -exp : exp;
+        }
+        checkNumberEnd(p, c);
+
+        double d;
+        if (exact && mantissa == 0) {
+            d = 0.0;
+        } else if (exact && mantissa <= (1L << 53) && exp10 >= -22 && exp10 <= 22) {
+            d = exp10 >= 0 ? mantissa * POWERS_OF_TEN[exp10] : mantissa / POWERS_OF_TEN[-exp10];
+        } else {
+            p.doubleValue = Double.parseDouble(numberText(p));
+            p.mark = -1;
+            p.inNumber = false;
+            return false;
+        }
+        p.mark = -1;
+        p.inNumber = false;
+        p.doubleValue = isNegative ? -d : d;
+        return false;
+    }
+
+    /**
+     * Parses a number literal into a Long (Long.valueOf, so small values share
+     * cached boxes) or a Double.
+     */
+    private static Number nextNumber(Java2Json p) {
+        if (scanNumber(p)) {
+            long value = p.longValue;
+            return value == 0 ? ZERO : Long.valueOf(value);
+        }
+        return Double.valueOf(p.doubleValue);
+    }
+
+    /**
+     * Parses a number literal into a JsonNumber for Options.lazyNumbers():  the
+     * literal is checked against the same grammar as in scanNumber(), but its
+     * text is kept instead of converted.
+     */
+    private static Number nextJsonNumber(Java2Json p) {
+        p.mark = p.pos;
+        p.inNumber = true;
+        int c = peek(p);
+        if (c == '-') {
+            p.pos++;
+            c = peek(p);
+            if (c < 0 || isNumberEnd(c)) {
+                throw new RuntimeException("number literal cannot be negative sign by itself");
+            }
+        }
+        if (c == '0') {
+            p.pos++;
+            c = peek(p);
+            if (c >= '0' && c <= '9') {
+                p.pos++;
+                throw numberException(p, "number literal cannot have leading zero");
+            }
+        } else if (c >= '1' && c <= '9') {
+            c = skipDigits(p);
+        } else {
+            throw numberException(p, c == '.' ? "number literal cannot start with decimal point" : "invalid number literal");
+        }
+        if (c == '.') {
+            p.pos++;
+            c = peek(p);
+            if (c < '0' || c > '9') {
+                throw numberException(p, "number literal invalid decimal point");
+            }
+            c = skipDigits(p);
+        }
+        if (c == 'e' || c == 'E') {
+            p.pos++;
+            c = peek(p);
+            if (c == '-' || c == '+') {
+                p.pos++;
+                c = peek(p);
+            }
+            if (c < '0' || c > '9') {
+                throw numberException(p, "number literal invalid exponential");
+            }
+            c = skipDigits(p);
+        }
+        checkNumberEnd(p, c);
+        JsonNumber n = new JsonNumber(numberText(p));
+        p.mark = -1;
+        p.inNumber = false;
+        return n;
+    }
+
+    /**
+     * @return the char after the run of digits at pos
+     */
+    private static int skipDigits(Java2Json p) {
+        int c;
+        do {
+            p.pos++;
+            c = peek(p);
+        } while (c >= '0' && c <= '9');
+        return c;
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private static boolean isNumberEnd(int c) {
+        return c == ',' || c == '}' || c == ']' || isWhitespace((char) c);
+    }
+
+    private static void checkNumberEnd(Java2Json p, int c) {
+        checkNumberLength(p, p.pos - p.mark);
+        if (c >= 0 && !isNumberEnd(c)) {
+            if (c == '-' || c == '+' || c == 'e' || c == 'E' || c == '.' || (c >= '0' && c <= '9')) {
+                p.pos++;
+                throw numberException(p, "invalid number literal");
+            }
+            throw new RuntimeException("expected number but got: " + (char) c);
+        }
+    }
+
+    private static void checkNumberLength(Java2Json p, int length) {
+        if (length > p.maxNumberLength) {
+            throw limitException("number literal", p.maxNumberLength, " chars");
+        }
+    }
+
+    private static RuntimeException numberException(Java2Json p, String msg) {
+        return new RuntimeException(msg + ": " + numberText(p));
+    }
+
+    /**
+     * @return the number literal from 'mark' up to 'pos'
+     */
+    private static String numberText(Java2Json p) {
+        if (p.bytes != null) {
+            return new String(p.bytes, p.mark, p.pos - p.mark, StandardCharsets.ISO_8859_1);
+        } else {
+            return new String(p.json, p.mark, p.pos - p.mark);
+        }
+    }
+
+    /**
+     * Parses a string literal (skipping any whitespace before its opening quote).
+     * <p>
+     * The literal is scanned ahead to its closing quote, and if that run holds no
+     * backslash or control character it becomes a String with a single copy
+     * straight out of the input buffer.  Only literals containing escapes are
+     * assembled char by char, in the parser's reusable scratch StringBuilder.
+     */
+    private static String nextString(Java2Json p) {
+        openQuote(p);
+        return p.values == null ? stringBody(p) : pooledString(p, p.values);
+    }
+
+    /**
+     * nextString() with Options.values():  a plain literal of up to maxLength chars
+     * is hashed while it is scanned and looked up in the pool straight from the
+     * input buffer, so a value seen before costs no allocation.  Other literals
+     * are parsed as usual, and then pooled if short enough.
+     */
+    private static String pooledString(Java2Json p, StringPool pool) {
+        p.mark = p.pos;
+        final int end = (int) Math.min(p.limit, (long) p.pos + pool.maxLength + 1);
+        int hash = 0;
+        if (p.bytes != null) {
+            final byte[] bytes = p.bytes;
+            for (int i = p.pos; i < end; i++) {
+                byte b = bytes[i];
+                if (b == '"') {
+                    checkStringLength(p, i - p.mark);
+                    String s = pool.lookup(bytes, p.mark, i - p.mark, hash);
+                    p.pos = i + 1;
+                    p.mark = -1;
+                    return s;
+                } else if (b == '\\' || b < 0x20) {
+                    break;
+                }
+                hash = 31 * hash + b;
+            }
+        } else {
+            final char[] json = p.json;
+            for (int i = p.pos; i < end; i++) {
+                char c = json[i];
+                if (c == '"') {
+                    checkStringLength(p, i - p.mark);
+                    String s = pool.lookup(json, p.mark, i - p.mark, hash);
+                    p.pos = i + 1;
+                    p.mark = -1;
+                    return s;
+                } else if (c == '\\' || c < 0x20 || (c >= 0x80 && c <= 0x9F)) {
+                    break;
+                }
+                hash = 31 * hash + c;
+            }
+        }
+        return pool.intern(stringBody(p));
+    }
+
+    private static String stringBody(Java2Json p) {
+        if (p.bytes != null) {
+            return nextUtf8String(p);
+        }
+        p.mark = p.pos;
+        do {
+            final char[] json = p.json;
+            final int end = p.limit;
+            for (int i = p.pos; i < end; i++) {
+                char c = json[i];
+                if (c == '"') {
+                    checkStringLength(p, i - p.mark);
+                    String s = new String(json, p.mark, i - p.mark);
+                    p.pos = i + 1;
+                    p.mark = -1;
+                    return s;
+                } else if (c == '\\' || c < 0x20 || (c >= 0x80 && c <= 0x9F)) {
+                    p.pos = i;
+                    return nextStringSlow(p);
+                }
+            }
+            p.pos = end;
+        } while (p.fill());
+        throw new RuntimeException("never found literal string terminator \"");
+    }
+
+    /**
+     * nextString() for object keys:  while scanning a plain (escape-free, and for
+     * UTF-8 input ASCII-only) key it also computes the key's String.hashCode(),
+     * and then looks it up in the symbol table, so a repeated key returns the
+     * canonical String without allocating anything.  Other keys are parsed
+     * like any string literal.
+     */
+    private static String nextKey(Java2Json p) {
+        openQuote(p);
+        p.mark = p.pos;
+        int hash = 0;
+        scan:
+        do {
+            final int end = p.limit;
+            if (p.bytes != null) {
+                final byte[] bytes = p.bytes;
+                for (int i = p.pos; i < end; i++) {
+                    byte b = bytes[i];
+                    if (b == '"') {
+                        p.pos = i;
+                        break scan;
+                    } else if (b == '\\' || b < 0x20) {
+                        p.pos = p.mark;
+                        return stringBody(p);
+                    }
+                    hash = 31 * hash + b;
+                }
+            } else {
+                final char[] json = p.json;
+                for (int i = p.pos; i < end; i++) {
+                    char c = json[i];
+                    if (c == '"') {
+                        p.pos = i;
+                        break scan;
+                    } else if (c == '\\' || c < 0x20 || (c >= 0x80 && c <= 0x9F)) {
+                        p.pos = p.mark;
+                        return stringBody(p);
+                    }
+                    hash = 31 * hash + c;
+                }
+            }
+            p.pos = end;
+        } while (p.fill());
+        if (p.pos == p.limit) {
+            throw new RuntimeException("never found literal string terminator \"");
+        }
+        int length = p.pos - p.mark;
+        checkStringLength(p, length);
+        SymbolTable keys = p.keys();
+        String key = p.bytes != null
+                ? keys.lookup(p.bytes, p.mark, length, hash)
+                : keys.lookup(p.json, p.mark, length, hash);
+        p.pos++;
+        p.mark = -1;
+        return key;
+    }
+
+    /**
+     * nextString() for a JsonHandler:  a plain (escape-free, and for UTF-8 input
+     * ASCII-only) literal becomes the parser's Slice over the input buffer, and
+     * any other literal is decoded into the scratch buffer, which the Slice then
+     * views.  No String is made either way.
+     */
+    private static CharSequence nextSlice(Java2Json p) {
+        openQuote(p);
+        if (p.slice == null) {
+            p.slice = new Slice();
+        }
+        p.mark = p.pos;
+        do {
+            final int end = p.limit;
+            if (p.bytes != null) {
+                final byte[] bytes = p.bytes;
+                for (int i = skipAscii(p, p.pos, end); i < end; i++) {
+                    byte b = bytes[i];
+                    if (b == '"') {
+                        checkStringLength(p, i - p.mark);
+                        p.slice.set(null, bytes, p.mark, i - p.mark);
+                        p.pos = i + 1;
+                        p.mark = -1;
+                        return p.slice;
+                    } else if (b == '\\' || b < 0x20) {
+                        p.pos = p.mark;
+                        p.mark = -1;
+                        return p.slice.set(decodeUtf8(p, p.scratch(16)));
+                    }
+                }
+            } else {
+                final char[] json = p.json;
+                for (int i = p.pos; i < end; i++) {
+                    char c = json[i];
+                    if (c == '"') {
+                        checkStringLength(p, i - p.mark);
+                        p.slice.set(json, null, p.mark, i - p.mark);
+                        p.pos = i + 1;
+                        p.mark = -1;
+                        return p.slice;
+                    } else if (c == '\\' || c < 0x20 || (c >= 0x80 && c <= 0x9F)) {
+                        p.pos = i;
+                        return p.slice.set(unescape(p));
+                    }
+                }
+            }
+            p.pos = end;
+        } while (p.fill());
+        throw new RuntimeException("never found literal string terminator \"");
+    }
+
+    private static void openQuote(Java2Json p) {
+        while (more(p)) {
+            char c = p.charAt(p.pos++);
+            if (c == '"') {
+                return;
+            } else if (!isWhitespace(c)) {
+                throw new RuntimeException("json expecting double-quote: " + c);
+            }
+        }
+        throw new RuntimeException("never found literal string terminator \"");
+    }
+
+    private static String nextStringSlow(Java2Json p) {
+        return unescape(p).toString();
+    }
+
+    /**
+     * Finishes a string literal that holds escapes:  the plain run from 'mark' is
+     * copied into the scratch buffer, and the rest is decoded char by char.
+     *
+     * @return the scratch buffer, holding the decoded literal
+     */
+    private static StringBuilder unescape(Java2Json p) {
+        StringBuilder buf = p.scratch(p.pos - p.mark + 16);
+        buf.append(p.json, p.mark, p.pos - p.mark);
+        p.mark = -1;
+        while (more(p)) {
+            checkStringLength(p, buf.length());
+            char c = p.json[p.pos++];
+            if (c == '"') {
+                return buf;
+            } else if (c == '\\') {
+                if (!more(p)) {
+                    break;
+                }
+                appendEscape(p, p.json[p.pos++], buf);
+            } else if (Character.isISOControl(c) && c != 0x7F) {
+                throw controlCharacterException(c);
+            } else {
+                buf.append(c);
+            }
+        }
+        throw new RuntimeException("never found literal string terminator \"");
+    }
+
+    private StringBuilder scratch(int minCapacity) {
+        if (scratch == null) {
+            scratch = new StringBuilder(Math.max(64, minCapacity));
+        }
+        scratch.setLength(0);
+        return scratch;
+    }
+
+    /**
+     * Appends the char represented by a backslash escape.  Each backslash-u escape
+     * is a single UTF-16 unit, so an escaped high surrogate followed by an escaped
+     * low surrogate appends a valid surrogate pair, and a lone surrogate is kept as-is.
+     *
+     * @param c the char that followed the backslash
+     */
+    private static void appendEscape(Java2Json p, char c, StringBuilder buf) {
+        switch (c) {
+            case '/':
+                buf.append('/');
+                break;
+            case 'b':
+                buf.append('\b');
+                break;
+            case 'f':
+                buf.append('\f');
+                break;
+            case 'n':
+                buf.append('\n');
+                break;
+            case 'r':
+                buf.append('\r');
+                break;
+            case 't':
+                buf.append('\t');
+                break;
+            case '"':
+                buf.append('"');
+                break;
+            case '\\':
+                buf.append('\\');
+                break;
+            case 'u':
+                int unit = 0;
+                for (int j = 0; j < 4; j++) {
+                    if (!more(p)) {
+                        throw new RuntimeException("\\u encoded literal ran out of string to parse");
+                    }
+                    char hexChar = p.charAt(p.pos++);
+                    if (!isHex(hexChar)) {
+                        throw new RuntimeException("invalid \\u encoded character (must be hex): " + hexChar);
+                    }
+                    unit = (unit << 4) | Character.digit(hexChar, 16);
+                }
+                buf.append((char) unit);
+                break;
+            default:
+                throw new RuntimeException("invalid backslash protected character: " + c);
+        }
+    }
+
+    private static RuntimeException controlCharacterException(char c) {
+        StringBuilder hex = new StringBuilder(Integer.toHexString(c));
+        for (int j = hex.length(); j < 4; j++) {
+            hex.insert(0, "0");
+        }
+        return new RuntimeException("control characters in string literal must be escaped: \\u" + hex);
+    }
+
+    /**
+     * nextString() for UTF-8 input, called just after the opening quote.  Escape-free
+     * literals are turned into a String straight from the byte[] (as ISO-8859-1
+     * when they are pure ASCII, which needs no decoding at all).  Literals with
+     * escapes or C1 control characters fall back to decoding byte by byte.
+     */
+    private static String nextUtf8String(Java2Json p) {
+        p.mark = p.pos;
+        boolean ascii = true;
+        do {
+            final byte[] bytes = p.bytes;
+            final int end = p.limit;
+            for (int i = ascii ? skipAscii(p, p.pos, end) : p.pos; i < end; i++) {
+                byte b = bytes[i];
+                if (b == '"') {
+                    String s = new String(bytes, p.mark, i - p.mark, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+                    checkStringLength(p, s.length());
+                    p.pos = i + 1;
+                    p.mark = -1;
+                    return s;
+                } else if (b == '\\' || (b >= 0 && b < 0x20) || b == (byte) 0xC2) {
+                    p.pos = i;
+                    StringBuilder buf = p.scratch(i - p.mark + 16);
+                    buf.append(new String(bytes, p.mark, i - p.mark, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8));
+                    p.mark = -1;
+                    return decodeUtf8(p, buf).toString();
+                } else if (b < 0) {
+                    ascii = false;
+                }
+            }
+            p.pos = end;
+        } while (p.fill());
+        throw new RuntimeException("never found literal string terminator \"");
+    }
+
+    /**
+     * Decodes the rest of a UTF-8 string literal (escapes included) into buf.
+     *
+     * @return buf
+     */
+    private static StringBuilder decodeUtf8(Java2Json p, StringBuilder buf) {
+        while (more(p)) {
+            checkStringLength(p, buf.length());
+            int b = p.bytes[p.pos++] & 0xFF;
+            if (b == '"') {
+                return buf;
+            } else if (b == '\\') {
+                if (!more(p)) {
+                    break;
+                }
+                appendEscape(p, read(p), buf);
+            } else if (b < 0x20) {
+                throw controlCharacterException((char) b);
+            } else if (b < 0x80) {
+                buf.append((char) b);
+            } else {
+                int cp = nextUtf8CodePoint(p, b);
+                if (cp >= 0x80 && cp <= 0x9F) {
+                    throw controlCharacterException((char) cp);
+                }
+                buf.appendCodePoint(cp);
+            }
+        }
+        throw new RuntimeException("never found literal string terminator \"");
+    }
+
+    /**
+     * Decodes the rest of a multi-byte UTF-8 sequence whose lead byte was just read.
+     * Malformed sequences decode to U+FFFD, and the offending byte is left unread.
+     */
+    private static int nextUtf8CodePoint(Java2Json p, int lead) {
+        int len;
+        int cp;
+        int min;
+        if (lead >= 0xC2 && lead <= 0xDF) {
+            len = 1;
+            cp = lead & 0x1F;
+            min = 0x80;
+        } else if (lead >= 0xE0 && lead <= 0xEF) {
+            len = 2;
+            cp = lead & 0x0F;
+            min = 0x800;
+        } else if (lead >= 0xF0 && lead <= 0xF4) {
+            len = 3;
+            cp = lead & 0x07;
+            min = 0x10000;
+        } else {
+            return 0xFFFD;
+        }
+        for (int i = 0; i < len; i++) {
+            if (!more(p) || (p.bytes[p.pos] & 0xC0) != 0x80) {
+                return 0xFFFD;
+            }
+            cp = (cp << 6) | (p.bytes[p.pos++] & 0x3F);
+        }
+        if (cp < min || cp > 0x10FFFF || (cp >= 0xD800 && cp <= 0xDFFF)) {
+            return 0xFFFD;
+        }
+        return cp;
+    }
+
+    private static boolean isHex(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private final static long LOW7 = 0x7F7F7F7F7F7F7F7FL;
+    private final static long HIGH = 0x8080808080808080L;
+
+    /**
+     * Skips through the plain part of a string literal in UTF-8 input eight bytes
+     * at a time (SWAR:  all eight bytes of a long are tested at once, with no
+     * carries between them), as long as none of them is a quote, a backslash, a
+     * control char or a non-ASCII byte.  Runs shorter than a long are left to the
+     * caller's byte loop, which also takes over at the byte that stopped this one.
+     *
+     * @return the index of the first byte that needs a look, or of the last few bytes before end
+     */
+    private static int skipAscii(Java2Json p, int i, int end) {
+        if (end - i < 8) {
+            return i;
+        }
+        if (p.words == null || p.words.array() != p.bytes) {
+            p.words = ByteBuffer.wrap(p.bytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        final ByteBuffer words = p.words;
+        for (; i <= end - 8; i += 8) {
+            long w = words.getLong(i);
+            long quote = w ^ 0x2222222222222222L;
+            long backslash = w ^ 0x5C5C5C5C5C5C5C5CL;
+            // The high bit of each byte stays set in 'plain' only if no test hits it.
+            long plain = ((quote & LOW7) + LOW7 | quote)
+                    & ((backslash & LOW7) + LOW7 | backslash)
+                    & ((w & LOW7) + 0x6060606060606060L)
+                    & ~w & HIGH;
+            if (plain != HIGH) {
+                return i + (Long.numberOfTrailingZeros(plain ^ HIGH) >>> 3);
+            }
+        }
+        return i;
+    }
+
+    private static StringBuilder prettyPrint(
+            final boolean pretty, final Object objParam, final int level, final StringBuilder buf, final Appendable sink
+    ) {
+        if (objParam instanceof LongList || objParam instanceof DoubleList) {
+            return printNumbers(pretty, (List) objParam, level, buf, sink);
+        }
+        Iterator it;
+        final Object obj;
+        if (objParam instanceof Object[]) {
+            Object[] objs = (Object[]) objParam;
+            obj = Arrays.asList(objs);
+        } else {
+            obj = objParam;
+        }
+
+        if (obj instanceof Map) {
+            Map m = (Map) obj;
+            it = m.entrySet().iterator();
+        } else if (obj instanceof Collection) {
+            Collection l = (Collection) obj;
+            it = l.iterator();
+        } else {
+            it = Collections.singleton(obj).iterator();
+        }
+
+        while (it.hasNext()) {
+            Object o = it.next();
+            Object val = o;
+            if (val instanceof Object[]) {
+                Object[] objs = (Object[]) val;
+                val = Arrays.asList(objs);
+            }
+            val = jsonView(val);
+
+            if (pretty) {
+                buf.append('\n');
+                indent(buf, level);
+            }
+            if (o instanceof Map.Entry) {
+                Map.Entry me = (Map.Entry) o;
+                Object keyObj = me.getKey();
+                String key;
+                if (keyObj instanceof String) {
+                    key = (String) keyObj;
+                } else {
+                    key = String.valueOf(keyObj);
+                }
+                buf.append('"');
+                jsonSafe(key, buf);
+                buf.append('"').append(':');
+                val = me.getValue();
+                if (val instanceof Object[]) {
+                    Object[] objs = (Object[]) val;
+                    val = Arrays.asList(objs);
+                }
+                val = jsonView(val);
+            }
+
+            if (val == null || val instanceof Boolean || val instanceof Number) {
+                jsonSafe(val, buf);
+            } else if (val instanceof Collection) {
+                buf.append('[');
+                prettyPrint(pretty, val, level + 1, buf, sink);
+                if (pretty && !((Collection) val).isEmpty()) {
+                    buf.append('\n');
+                    indent(buf, level);
+                }
+                buf.append(']');
+            } else if (val instanceof Map) {
+                buf.append('{');
+                prettyPrint(pretty, val, level + 1, buf, sink);
+                if (pretty && !((Map) val).isEmpty()) {
+                    buf.append('\n');
+                    indent(buf, level);
+                }
+                buf.append('}');
+            } else {
+                buf.append('"');
+                jsonSafe(val, buf);
+                buf.append('"');
+            }
+            if (it.hasNext()) {
+                buf.append(',');
+            }
+            if (sink != null && buf.length() >= WINDOW_SIZE) {
+                flush(buf, sink);
+            }
+        }
+        return buf;
+    }
+
+    /**
+     * @return a List view of a primitive array, a Map view of a JavaBean's properties
+     * (or a record's components), or else o itself.
+     */
+    @SuppressWarnings("rawtypes")
+    private static Object jsonView(final Object o) {
+        if (o == null || o instanceof String || o instanceof Number || o instanceof Boolean
+                || o instanceof Map || o instanceof Collection || o instanceof Object[]) {
+            return o;
+        } else if (o instanceof long[]) {
+            return new LongList((long[]) o);
+        } else if (o instanceof double[]) {
+            return new DoubleList((double[]) o);
+        } else if (o.getClass().isArray()) {
+            return new AbstractList() {
+                public Object get(int index) {
+                    return Array.get(o, index);
+                }
+
+                public int size() {
+                    return Array.getLength(o);
+                }
+            };
+        }
+        Codec codec = CODECS.get(o.getClass());
+        return codec == Codec.NONE ? o : new BeanMap(codec, o);
+    }
+
+    /**
+     * prettyPrint() for a LongList or DoubleList, reading the backing array directly.
+     */
+    @SuppressWarnings("rawtypes")
+    private static StringBuilder printNumbers(
+            final boolean pretty, final List l, final int level, final StringBuilder buf, final Appendable sink
+    ) {
+        long[] longs = l instanceof LongList ? ((LongList) l).values : null;
+        double[] doubles = l instanceof DoubleList ? ((DoubleList) l).values : null;
+        int size = l.size();
+        for (int i = 0; i < size; i++) {
+            if (pretty) {
+                buf.append('\n');
+                indent(buf, level);
+            }
+            if (longs != null) {
+                buf.append(longs[i]);
+            } else {
+                appendDouble(doubles[i], false, buf);
+            }
+            if (i + 1 < size) {
+                buf.append(',');
+            }
+            if (sink != null && buf.length() >= WINDOW_SIZE) {
+                flush(buf, sink);
+            }
+        }
+        return buf;
+    }
+
+    private static void flush(StringBuilder buf, Appendable sink) {
+        try {
+            sink.append(buf);
+            buf.setLength(0);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    // Two spaces per level, for indent() to copy from.
+    private final static char[] INDENT = new char[128];
+
+    static {
+        Arrays.fill(INDENT, ' ');
+    }
+
+    private static StringBuilder indent(StringBuilder buf, int level) {
+        int n = level * 2;
+        for (; n > INDENT.length; n -= INDENT.length) {
+            buf.append(INDENT);
+        }
+        return buf.append(INDENT, 0, n);
+    }
+
+    // How jsonSafe() writes each char up to U+009F:  null if as-is, else its escape
+    // sequence.  Everything above is written as-is.
+    private final static String[] ESCAPES = new String[0xA0];
+
+    static {
+        final String hex = "0123456789abcdef";
+        for (int c = 0; c < ESCAPES.length; c++) {
+            if (Character.isISOControl(c)) {
+                ESCAPES[c] = "\\u00" + hex.charAt(c >> 4) + hex.charAt(c & 0xF);
+            }
+        }
+        ESCAPES['\b'] = "\\b";
+        ESCAPES['\f'] = "\\f";
+        ESCAPES['\n'] = "\\n";
+        ESCAPES['\r'] = "\\r";
+        ESCAPES['\t'] = "\\t";
+        ESCAPES['\\'] = "\\\\";
+        ESCAPES['"'] = "\\\"";
+    }
+
+    private static void jsonSafe(Object o, StringBuilder buf) {
+        if (o == null) {
+            buf.append("null");
+        } else if (o instanceof String) {
+            escape((String) o, buf);
+        } else if (o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte) {
+            buf.append(((Number) o).longValue());
+        } else if (o instanceof Double || o instanceof Float) {
+            appendDouble(((Number) o).doubleValue(), o instanceof Float, buf);
+        } else if (o instanceof Boolean) {
+            buf.append(((Boolean) o).booleanValue());
+        } else if (o instanceof JsonNumber) {
+            buf.append(((JsonNumber) o).text);
+        } else if (o instanceof Number) {
+            buf.append(o.toString());
+        } else if (o instanceof Map || o instanceof Collection) {
+            throw new RuntimeException("cannot make Map or Collection into json string literal: " + o);
+        } else {
+            escape(String.valueOf(o), buf);
+        }
+    }
+
+    /**
+     * Writes a double (or float) as Double.toString() (or Float.toString()) does,
+     * except for the infinities, which JSON has no literal for.
+     */
+    private static void appendDouble(double d, boolean isFloat, StringBuilder buf) {
+        if (d == Double.POSITIVE_INFINITY) {
+            buf.append("1e99999");
+        } else if (d == Double.NEGATIVE_INFINITY) {
+            buf.append("-1e99999");
+        } else if (isFloat) {
+            buf.append((float) d);
+        } else {
+            buf.append(d);
+        }
+    }
+
+    /**
+     * Appends s with JSON string escapes, copying the runs of characters between
+     * escapes in bulk (and all of s at once if nothing needs escaping).
+     */
+    private static void escape(String s, StringBuilder buf) {
+        final int len = s.length();
+        int run = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            String esc = c < ESCAPES.length ? ESCAPES[c] : null;
+            if (esc == null) {
+                continue;
+            }
+            buf.append(s, run, i).append(esc);
+            run = i + 1;
+        }
+        if (run == 0) {
+            buf.append(s);
+        } else {
+            buf.append(s, run, len);
+        }
+    }
+
+    /**
+     * Options for the parse methods that accept them.  An Options instance may be
+     * shared between threads once configured.
+     */
+    public static class Options {
+        private SymbolTable keys;
+        private StringPool values;
+        private boolean parallel;
+        private boolean primitiveArrays;
+        private boolean lazyNumbers;
+        private int maxDepth = Integer.MAX_VALUE;
+        private int maxStringLength = Integer.MAX_VALUE;
+        private int maxNumberLength = Integer.MAX_VALUE;
+        private long maxTokens = Long.MAX_VALUE;
+
+        /**
+         * Canonicalizes object keys through the given table instead of through a fresh
+         * table per parse.  A table shared across parses keeps a single String per
+         * distinct key for all the documents it sees (e.g., every record of a feed).
+         *
+         * With null, each parse makes its own table, except that a JsonReader (such as
+         * the one the static parse methods keep per thread) carries its table on to its
+         * next parse until the table is full, and leaves keys over 64 chars out of it.
+         *
+         * @param keys a (typically shared) symbol table, or null for one table per parse
+         * @return this Options
+         */
+        public Options keys(SymbolTable keys) {
+            this.keys = keys;
+            return this;
+        }
+
+        /**
+         * Deduplicates short string values through the given pool, so values that
+         * repeat across a document (or across documents, with a shared pool) are
+         * returned as the same String instead of one copy each.
+         *
+         * @param values a (typically shared) string pool, or null to not pool values
+         * @return this Options
+         */
+        public Options values(StringPool values) {
+            this.values = values;
+            return this;
+        }
+
+        /**
+         * Parses documents whose top level is a large array (1 MB or more) on the
+         * common ForkJoinPool, splitting the array into slices of elements.  The
+         * result and any error are the same as with a sequential parse.  Only
+         * applies to input held in memory (String, byte[] and heap ByteBuffer).
+         *
+         * @param parallel true to parse large top-level arrays in parallel
+         * @return this Options
+         */
+        public Options parallel(boolean parallel) {
+            this.parallel = parallel;
+            return this;
+        }
+
+        /**
+         * Returns non-empty arrays that hold only numbers as a LongList (all integers)
+         * or a DoubleList (any decimal, with the integers widened to double), instead
+         * of an ArrayList of boxed Longs and Doubles.  An array whose integers do not
+         * all fit exactly in a double stays an ArrayList.
+         *
+         * @param primitiveArrays true to store numeric arrays in long[] or double[]
+         * @return this Options
+         */
+        public Options primitiveArrays(boolean primitiveArrays) {
+            this.primitiveArrays = primitiveArrays;
+            return this;
+        }
+
+        /**
+         * Returns every number as a JsonNumber, which keeps the literal's text and
+         * only converts it when asked to (integers beyond a long then stay exact
+         * as a BigInteger or BigDecimal instead of becoming a rounded Double).
+         * Formatting writes a JsonNumber back as its original text.  Takes
+         * precedence over primitiveArrays().
+         *
+         * @param lazyNumbers true to return numbers as JsonNumbers
+         * @return this Options
+         */
+        public Options lazyNumbers(boolean lazyNumbers) {
+            this.lazyNumbers = lazyNumbers;
+            return this;
+        }
+
+        /**
+         * Limits how deeply objects and arrays may nest.  The parser keeps its own
+         * stack (it does not recurse per level), so deep input parsed into Maps and
+         * Lists is safe on any thread even without a limit, but its size then only
+         * depends on the input.  Binding to a class (parse(..., Class) and the like)
+         * does recurse per level, so without a limit it stops at 256 levels, which
+         * fits in a 256 KB thread stack.  No limit by default.
+         *
+         * @param maxDepth the most containers that may be open at once
+         * @return this Options
+         */
+        public Options maxDepth(int maxDepth) {
+            this.maxDepth = maxDepth;
+            return this;
+        }
+
+        /**
+         * Limits the length of keys and string values, in chars after unescaping.
+         * No limit by default.
+         *
+         * @param maxStringLength the longest string accepted
+         * @return this Options
+         */
+        public Options maxStringLength(int maxStringLength) {
+            this.maxStringLength = maxStringLength;
+            return this;
+        }
+
+        /**
+         * Limits the length of number literals, in chars (sign, digits, decimal point
+         * and exponent).  No limit by default.
+         *
+         * @param maxNumberLength the longest number literal accepted
+         * @return this Options
+         */
+        public Options maxNumberLength(int maxNumberLength) {
+            this.maxNumberLength = maxNumberLength;
+            return this;
+        }
+
+        /**
+         * Limits the number of values in a document:  every object, array, string,
+         * number, boolean and null counts as one (keys do not).  No limit by default.
+         *
+         * @param maxTokens the most values accepted
+         * @return this Options
+         */
+        public Options maxTokens(long maxTokens) {
+            this.maxTokens = maxTokens;
+            return this;
+        }
+    }
+
+    /**
+     * Interns object keys during parsing.  Keys are hashed and compared in place in
+     * the input buffer, so a key seen before is returned as the existing String
+     * without allocating.  Only plain keys (no escapes, ASCII-only in UTF-8 input)
+     * are looked up.
+     * <p>
+     * The table is bounded:  once it holds maxEntries keys (or a key's probe
+     * sequence is full), new keys are still parsed but no longer remembered.  It may be shared by concurrent parses:
+     * lookups never block, and a race at worst loses an insert or a count, which
+     * only costs a later miss.
+     */
+    public static class SymbolTable {
+        private final static int MAX_PROBES = 16;
+        private final int maxEntries;
+        private final int maxKeyLength;
+        private String[] table = new String[64];
+        private int size;
+        private long hits;
+        private long misses;
+
+        public SymbolTable() {
+            this(4096);
+        }
+
+        public SymbolTable(int maxEntries) {
+            this(maxEntries, Integer.MAX_VALUE);
+        }
+
+        // Longer keys are still looked up, but not added.
+        private SymbolTable(int maxEntries, int maxKeyLength) {
+            this.maxEntries = maxEntries;
+            this.maxKeyLength = maxKeyLength;
+        }
+
+        /**
+         * @return number of keys served from the table
+         */
+        public long hits() {
+            return hits;
+        }
+
+        /**
+         * @return number of keys that had to be allocated
+         */
+        public long misses() {
+            return misses;
+        }
+
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0.0 : (double) hits / total;
+        }
+
+        /**
+         * @return number of distinct keys held
+         */
+        public int size() {
+            return size;
+        }
+
+        String lookup(char[] buf, int off, int len, int hash) {
+            String[] t = table;
+            int mask = t.length - 1;
+            for (int i = spread(hash) & mask, probes = 0; probes < MAX_PROBES; i = (i + 1) & mask, probes++) {
+                String s = t[i];
+                if (s == null) {
+                    return add(new String(buf, off, len));
+                } else if (s.hashCode() == hash && s.length() == len && matches(s, buf, off)) {
+                    hits++;
+                    return s;
+                }
+            }
+            misses++;
+            return new String(buf, off, len);
+        }
+
+        String lookup(byte[] buf, int off, int len, int hash) {
+            String[] t = table;
+            int mask = t.length - 1;
+            for (int i = spread(hash) & mask, probes = 0; probes < MAX_PROBES; i = (i + 1) & mask, probes++) {
+                String s = t[i];
+                if (s == null) {
+                    return add(new String(buf, off, len, StandardCharsets.ISO_8859_1));
+                } else if (s.hashCode() == hash && s.length() == len && matches(s, buf, off)) {
+                    hits++;
+                    return s;
+                }
+            }
+            misses++;
+            return new String(buf, off, len, StandardCharsets.ISO_8859_1);
+        }
+
+        String lookup(CharSequence chars) {
+            int len = chars.length();
+            int hash = 0;
+            for (int i = 0; i < len; i++) {
+                hash = 31 * hash + chars.charAt(i);
+            }
+            String[] t = table;
+            int mask = t.length - 1;
+            for (int i = spread(hash) & mask, probes = 0; probes < MAX_PROBES; i = (i + 1) & mask, probes++) {
+                String s = t[i];
+                if (s == null) {
+                    return add(chars.toString());
+                } else if (s.hashCode() == hash && s.contentEquals(chars)) {
+                    hits++;
+                    return s;
+                }
+            }
+            misses++;
+            return chars.toString();
+        }
+
+        private static boolean matches(String s, char[] buf, int off) {
+            for (int i = 0; i < s.length(); i++) {
+                if (s.charAt(i) != buf[off + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean matches(String s, byte[] buf, int off) {
+            for (int i = 0; i < s.length(); i++) {
+                if (s.charAt(i) != buf[off + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        private String add(String s) {
+            misses++;
+            if (size >= maxEntries || s.length() > maxKeyLength) {
+                return s;
+            }
+            // Keep the load factor at or below 1/2, so probe sequences stay short.
+            String[] t = table;
+            if ((size + 1) * 2 > t.length) {
+                t = new String[t.length * 2];
+                for (String old : table) {
+                    if (old != null) {
+                        insert(t, old);
+                    }
+                }
+                table = t;
+            }
+            if (insert(t, s)) {
+                size++;
+            }
+            return s;
+        }
+
+        private static boolean insert(String[] t, String s) {
+            int mask = t.length - 1;
+            for (int i = spread(s.hashCode()) & mask, probes = 0; probes < MAX_PROBES; i = (i + 1) & mask, probes++) {
+                if (t[i] == null) {
+                    t[i] = s;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Deduplicates short string values during parsing (see Options.values()).  Values
+     * up to maxLength chars are looked up before they are allocated:  plain ones are
+     * hashed and compared in place in the input buffer, and only escaped (or, in UTF-8
+     * input, non-ASCII) ones are decoded first.  A value seen before is returned as the
+     * pooled String, so repeated values (package names, versions, enum-like statuses)
+     * are held in memory once.
+     * <p>
+     * The pool is bounded:  it is split into sets of 4 entries by hash, and a new value
+     * evicts one of its set by CLOCK (second chance), sparing entries that were hit
+     * since the hand last passed them.  The counters are there to tune maxEntries and
+     * maxLength with.  It may be shared by concurrent parses:  lookups never block,
+     * and a race at worst loses an entry or a count, which only costs a later miss.
+     */
+    public static class StringPool {
+        private final static int WAYS = 4;
+        private final int maxLength;
+        private final String[] table;
+        // Each entry's hash, so that probing a set reads no Strings but a match.
+        private final int[] hashes;
+        // CLOCK reference bits (1 if hit since the hand last passed), and each set's hand.
+        private final byte[] used;
+        private final byte[] hands;
+        private int size;
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        public StringPool() {
+            this(4096, 32);
+        }
+
+        /**
+         * @param maxEntries how many values to hold (rounded up to a power of two, at least 4)
+         * @param maxLength  the longest value to pool, in chars
+         */
+        public StringPool(int maxEntries, int maxLength) {
+            int sets = Integer.highestOneBit(Math.max(1, (maxEntries + WAYS - 1) / WAYS) * 2 - 1);
+            this.maxLength = maxLength;
+            this.table = new String[sets * WAYS];
+            this.hashes = new int[sets * WAYS];
+            this.used = new byte[sets * WAYS];
+            this.hands = new byte[sets];
+        }
+
+        /**
+         * @return number of values served from the pool
+         */
+        public long hits() {
+            return hits;
+        }
+
+        /**
+         * @return number of values (of up to maxLength chars) that were not in the pool
+         */
+        public long misses() {
+            return misses;
+        }
+
+        /**
+         * @return number of values dropped to make room for others
+         */
+        public long evictions() {
+            return evictions;
+        }
+
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0.0 : (double) hits / total;
+        }
+
+        /**
+         * @return number of values held
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return the most values the pool holds
+         */
+        public int capacity() {
+            return table.length;
+        }
+
+        public String toString() {
+            return "StringPool[size=" + size + "/" + table.length + ", hits=" + hits + ", misses=" + misses
+                    + ", evictions=" + evictions + ", maxLength=" + maxLength + "]";
+        }
+
+        String lookup(char[] buf, int off, int len, int hash) {
+            final int[] h = hashes;
+            final int first = set(hash);
+            for (int i = first; i < first + WAYS; i++) {
+                if (h[i] == hash) {
+                    String s = table[i];
+                    if (s != null && s.length() == len && SymbolTable.matches(s, buf, off)) {
+                        return hit(i, s);
+                    }
+                }
+            }
+            return add(first, hash, new String(buf, off, len));
+        }
+
+        String lookup(byte[] buf, int off, int len, int hash) {
+            final int[] h = hashes;
+            final int first = set(hash);
+            for (int i = first; i < first + WAYS; i++) {
+                if (h[i] == hash) {
+                    String s = table[i];
+                    if (s != null && s.length() == len && SymbolTable.matches(s, buf, off)) {
+                        return hit(i, s);
+                    }
+                }
+            }
+            return add(first, hash, new String(buf, off, len, StandardCharsets.ISO_8859_1));
+        }
+
+        /**
+         * @return the pooled String equal to str, or str itself (pooled, if short enough)
+         */
+        String intern(String str) {
+            if (str.length() > maxLength) {
+                return str;
+            }
+            final int[] h = hashes;
+            final int hash = str.hashCode();
+            final int first = set(hash);
+            for (int i = first; i < first + WAYS; i++) {
+                if (h[i] == hash) {
+                    String s = table[i];
+                    if (s != null && s.equals(str)) {
+                        return hit(i, s);
+                    }
+                }
+            }
+            return add(first, hash, str);
+        }
+
+        private int set(int hash) {
+            return ((hash ^ (hash >>> 16)) & (hands.length - 1)) * WAYS;
+        }
+
+        private String hit(int i, String s) {
+            hits++;
+            if (used[i] == 0) {
+                used[i] = 1;
+            }
+            return s;
+        }
+
+        private String add(int first, int hash, String s) {
+            misses++;
+            final String[] t = table;
+            for (int i = first; i < first + WAYS; i++) {
+                if (t[i] == null) {
+                    hashes[i] = hash;
+                    t[i] = s;
+                    size++;
+                    return s;
+                }
+            }
+            // Every entry of the set is taken:  the hand clears reference bits until it
+            // finds an entry without one (after a full turn, the one it started at).
+            final int set = first / WAYS;
+            int hand = hands[set];
+            for (int n = 0; n < WAYS && used[first + hand] != 0; n++) {
+                used[first + hand] = 0;
+                hand = (hand + 1) & (WAYS - 1);
+            }
+            hashes[first + hand] = hash;
+            t[first + hand] = s;
+            used[first + hand] = 0;
+            hands[set] = (byte) ((hand + 1) & (WAYS - 1));
+            evictions++;
+            return s;
+        }
+    }
+
+    /**
+     * Receives a JSON document from parse(source, JsonHandler) as a series of calls,
+     * in document order.  An object is startObject(), then key() and the value for
+     * each member, then endObject().  An array is startArray(), its elements, then
+     * endArray().
+     * <p>
+     * The CharSequence passed to key() and string() is only valid until the method
+     * returns.
+     */
+    public interface JsonHandler {
+        void startObject();
+
+        void key(CharSequence key);
+
+        void endObject();
+
+        void startArray();
+
+        void endArray();
+
+        void string(CharSequence value);
+
+        void longValue(long value);
+
+        void doubleValue(double value);
+
+        void bool(boolean value);
+
+        void nullValue();
+    }
+
+    /**
+     * The JsonHandler that builds what parse(String) returns:  nested JsonMaps,
+     * ArrayLists, Strings, Longs, Doubles, Booleans and nulls.  Keys are interned in a
+     * SymbolTable.
+     * <p>
+     * A TreeBuilder can be reused:  each top-level value replaces the previous result.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public static class TreeBuilder implements JsonHandler {
+        private final SymbolTable keys;
+        private Object[] stack = new Object[16];
+        private int depth;
+        private String key;
+        private Object result;
+
+        public TreeBuilder() {
+            this(new SymbolTable());
+        }
+
+        public TreeBuilder(SymbolTable keys) {
+            this.keys = keys;
+        }
+
+        /**
+         * @return the last complete top-level value
+         */
+        public Object result() {
+            return result;
+        }
+
+        public void startObject() {
+            push(new JsonMap());
+        }
+
+        public void key(CharSequence key) {
+            this.key = keys.lookup(key);
+        }
+
+        public void endObject() {
+            depth--;
+        }
+
+        public void startArray() {
+            push(new ArrayList());
+        }
+
+        public void endArray() {
+            depth--;
+        }
+
+        public void string(CharSequence value) {
+            add(value.toString());
+        }
+
+        public void longValue(long value) {
+            add(value == 0 ? ZERO : Long.valueOf(value));
+        }
+
+        public void doubleValue(double value) {
+            add(Double.valueOf(value));
+        }
+
+        public void bool(boolean value) {
+            add(Boolean.valueOf(value));
+        }
+
+        public void nullValue() {
+            add(null);
+        }
+
+        private void push(Object container) {
+            add(container);
+            if (depth == stack.length) {
+                stack = Arrays.copyOf(stack, depth * 2);
+            }
+            stack[depth++] = container;
+        }
+
+        private void add(Object value) {
+            if (depth == 0) {
+                result = value;
+                return;
+            }
+            Object container = stack[depth - 1];
+            if (container instanceof Map) {
+                ((Map) container).put(key, value);
+            } else {
+                ((List) container).add(value);
+            }
+        }
+    }
+
+    /**
+     * Fixed-size List of Longs backed by a long[]:  what parse() makes of an array
+     * of integers under Options.primitiveArrays().
+     */
+    public static final class LongList extends AbstractList<Long> implements RandomAccess {
+        private final long[] values;
+
+        public LongList(long[] values) {
+            this.values = values;
+        }
+
+        public int size() {
+            return values.length;
+        }
+
+        public Long get(int index) {
+            return values[index];
+        }
+
+        public Long set(int index, Long value) {
+            long prev = values[index];
+            values[index] = value;
+            return prev;
+        }
+
+        public long getLong(int index) {
+            return values[index];
+        }
+
+        /**
+         * @return the backing array (not a copy)
+         */
+        public long[] toLongArray() {
+            return values;
+        }
+    }
+
+    /**
+     * Fixed-size List of Doubles backed by a double[]:  what parse() makes of an
+     * array of numbers with at least one decimal under Options.primitiveArrays().
+     */
+    public static final class DoubleList extends AbstractList<Double> implements RandomAccess {
+        private final double[] values;
+
+        public DoubleList(double[] values) {
+            this.values = values;
+        }
+
+        public int size() {
+            return values.length;
+        }
+
+        public Double get(int index) {
+            return values[index];
+        }
+
+        public Double set(int index, Double value) {
+            double prev = values[index];
+            values[index] = value;
+            return prev;
+        }
+
+        public double getDouble(int index) {
+            return values[index];
+        }
+
+        /**
+         * @return the backing array (not a copy)
+         */
+        public double[] toDoubleArray() {
+            return values;
+        }
+    }
+
+    /**
+     * The Map that parse() makes of a JSON object:  keys and values in two parallel
+     * arrays, in insertion order, which takes far less memory than a LinkedHashMap's
+     * entry per key.  Lookups scan the keys while there are at most 8 of them (most
+     * objects) and go through an open-addressing index of the arrays beyond that.
+     * Putting an existing key keeps its position, as in a LinkedHashMap.  Removal
+     * shifts the later entries down, so it costs O(size).
+     * <p>
+     * Objects parsed with the same keys in the same order share one key array (and
+     * index) between them, so each only holds its own values.  The shared keys are
+     * copied the first time such a map gains or loses a key.
+     * <p>
+     * Any key (including null) and value may be put into it.  Not thread-safe.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public static final class JsonMap extends AbstractMap implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final static Object[] EMPTY = {};
+        private final static int LINEAR = 8;
+        private Object[] keys = EMPTY;
+        private Object[] values = EMPTY;
+        private int size;
+
+        // Only when size > LINEAR:  entry index + 1 per slot (0 if free), probed linearly.
+        // Rebuilt after removals (and deserialization) by the next lookup that needs it.
+        private transient int[] index;
+        private transient int modCount;
+
+        // keys[] (and index[]) belong to a Shape, and are copied before any change.
+        private boolean shared;
+
+        // Only while parseObject() fills the map in:  the shape of its keys so far.
+        private transient Shape shape;
+
+        public JsonMap() {
+        }
+
+        private JsonMap(Shape shape) {
+            this.keys = shape.keys;
+            this.shared = true;
+            this.shape = shape;
+        }
+
+        public JsonMap(Map m) {
+            int n = m.size();
+            if (n > 0) {
+                keys = new Object[n];
+                values = new Object[n];
+            }
+            putAll(m);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean containsKey(Object key) {
+            return find(key) >= 0;
+        }
+
+        public boolean containsValue(Object value) {
+            for (int i = 0; i < size; i++) {
+                Object v = values[i];
+                if (v == value || (value != null && value.equals(v))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public Object get(Object key) {
+            int i = find(key);
+            return i >= 0 ? values[i] : null;
+        }
+
+        public Object put(Object key, Object value) {
+            int i = find(key);
+            if (i >= 0) {
+                Object prev = values[i];
+                values[i] = value;
+                return prev;
+            }
+            if (shared) {
+                unshare();
+            }
+            if (size == keys.length) {
+                int capacity = Math.max(4, size * 2);
+                keys = Arrays.copyOf(keys, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            keys[size] = key;
+            values[size] = value;
+            size++;
+            modCount++;
+            if (index != null) {
+                if (size * 2 > index.length) {
+                    index = null;
+                } else {
+                    insert(index, keys, size - 1);
+                }
+            }
+            return null;
+        }
+
+        public Object remove(Object key) {
+            int i = find(key);
+            if (i < 0) {
+                return null;
+            }
+            Object prev = values[i];
+            removeAt(i);
+            return prev;
+        }
+
+        public void clear() {
+            if (shared) {
+                unshare();
+            }
+            Arrays.fill(keys, 0, size, null);
+            Arrays.fill(values, 0, size, null);
+            size = 0;
+            index = null;
+            modCount++;
+        }
+
+        private void removeAt(int i) {
+            if (shared) {
+                unshare();
+            }
+            int tail = size - i - 1;
+            System.arraycopy(keys, i + 1, keys, i, tail);
+            System.arraycopy(values, i + 1, values, i, tail);
+            size--;
+            keys[size] = null;
+            values[size] = null;
+            index = null;
+            modCount++;
+        }
+
+        private int find(Object key) {
+            final Object[] keys = this.keys;
+            if (size <= LINEAR) {
+                for (int i = 0; i < size; i++) {
+                    Object k = keys[i];
+                    if (k == key || (key != null && key.equals(k))) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+            int[] index = this.index;
+            if (index == null) {
+                index = buildIndex();
+            }
+            int mask = index.length - 1;
+            for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+                int e = index[slot];
+                if (e == 0) {
+                    return -1;
+                }
+                Object k = keys[e - 1];
+                if (k == key || (key != null && key.equals(k))) {
+                    return e - 1;
+                }
+            }
+        }
+
+        /**
+         * Adds a key that is new to this map being parsed, along with its shape.
+         */
+        private void append(Shape next, Object value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.max(4, size * 2));
+            }
+            values[size++] = value;
+            keys = next.keys;
+            index = next.index;
+            shape = next;
+            modCount++;
+        }
+
+        private void unshare() {
+            keys = Arrays.copyOf(keys, Math.max(size, values.length));
+            index = null;
+            shared = false;
+            shape = null;
+        }
+
+        private int[] buildIndex() {
+            int[] index = index(keys, size);
+            this.index = index;
+            return index;
+        }
+
+        private static int[] index(Object[] keys, int size) {
+            int[] index = new int[Integer.highestOneBit(size * 4 - 1)];
+            for (int i = 0; i < size; i++) {
+                insert(index, keys, i);
+            }
+            return index;
+        }
+
+        private static void insert(int[] index, Object[] keys, int i) {
+            int mask = index.length - 1;
+            int slot = hash(keys[i]) & mask;
+            while (index[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            index[slot] = i + 1;
+        }
+
+        private static int hash(Object key) {
+            int h = key == null ? 0 : key.hashCode();
+            return h ^ (h >>> 16);
+        }
+
+        public Set entrySet() {
+            return new AbstractSet() {
+                public int size() {
+                    return size;
+                }
+
+                public void clear() {
+                    JsonMap.this.clear();
+                }
+
+                public Iterator iterator() {
+                    return new Iterator() {
+                        private int next;
+                        private int last = -1;
+                        private int expectedModCount = modCount;
+
+                        public boolean hasNext() {
+                            return next < size;
+                        }
+
+                        public Object next() {
+                            if (modCount != expectedModCount) {
+                                throw new ConcurrentModificationException();
+                            } else if (next >= size) {
+                                throw new NoSuchElementException();
+                            }
+                            last = next++;
+                            return new Node(last);
+                        }
+
+                        public void remove() {
+                            if (last < 0) {
+                                throw new IllegalStateException();
+                            } else if (modCount != expectedModCount) {
+                                throw new ConcurrentModificationException();
+                            }
+                            removeAt(last);
+                            next = last;
+                            last = -1;
+                            expectedModCount = modCount;
+                        }
+                    };
+                }
+            };
+        }
+
+        private class Node implements Map.Entry {
+            private final int i;
+
+            Node(int i) {
+                this.i = i;
+            }
+
+            public Object getKey() {
+                return keys[i];
+            }
+
+            public Object getValue() {
+                return values[i];
+            }
+
+            public Object setValue(Object value) {
+                Object prev = values[i];
+                values[i] = value;
+                return prev;
+            }
+
+            public boolean equals(Object o) {
+                if (!(o instanceof Map.Entry)) {
+                    return false;
+                }
+                Map.Entry e = (Map.Entry) o;
+                Object k = keys[i];
+                Object v = values[i];
+                return (k == null ? e.getKey() == null : k.equals(e.getKey()))
+                        && (v == null ? e.getValue() == null : v.equals(e.getValue()));
+            }
+
+            public int hashCode() {
+                Object k = keys[i];
+                Object v = values[i];
+                return (k == null ? 0 : k.hashCode()) ^ (v == null ? 0 : v.hashCode());
+            }
+
+            public String toString() {
+                return keys[i] + "=" + values[i];
+            }
+        }
+    }
+
+    /**
+     * An ordered set of object keys, shared by all the JsonMaps a parser makes with
+     * those keys (like the hidden classes of JavaScript engines).  The shapes form a
+     * tree rooted at the empty shape:  each child adds one key, and the child taken
+     * last predicts the next object's next key, which matchKey() then compares
+     * straight against the input.
+     * <p>
+     * The tree stays with the parser (so a pooled one keeps it across documents) and
+     * is bounded like a SymbolTable:  past MAX_SHAPES shapes, or MAX_SHAPE_KEYS keys
+     * in one, objects keep their own keys instead.  A JsonReader drops a full tree
+     * after the document that filled it.
+     */
+    private static final class Shape {
+        private final static int MAX_SHAPES = 1024;
+        private final static int MAX_SHAPE_KEYS = 64;
+        private final Object[] keys;
+        private final int[] index;
+        private final String key;
+        private final boolean plain;
+        private Shape[] children;
+        private Shape next;
+
+        Shape(Object[] keys, String key) {
+            this.keys = keys;
+            this.index = keys.length > JsonMap.LINEAR ? JsonMap.index(keys, keys.length) : null;
+            this.key = key;
+            this.plain = key != null && isPlainKey(key);
+        }
+
+        /**
+         * @return the shape with key added to this one, or null if the tree is full
+         */
+        Shape child(String key, Java2Json p) {
+            Shape[] c = children;
+            int n = 0;
+            if (c != null) {
+                for (; n < c.length && c[n] != null; n++) {
+                    if (c[n].key.equals(key)) {
+                        next = c[n];
+                        return next;
+                    }
+                }
+            }
+            if (keys.length >= MAX_SHAPE_KEYS || p.shapeCount >= MAX_SHAPES) {
+                return null;
+            }
+            if (c == null || n == c.length) {
+                children = c = c == null ? new Shape[2] : Arrays.copyOf(c, n * 2);
+            }
+            Object[] k = Arrays.copyOf(keys, keys.length + 1);
+            k[keys.length] = key;
+            next = c[n] = new Shape(k, key);
+            p.shapeCount++;
+            return next;
+        }
+
+        /**
+         * @return true if key is printable ASCII without quotes or backslashes, so its
+         * literal in the input is just its chars
+         */
+        private static boolean isPlainKey(String key) {
+            for (int i = 0; i < key.length(); i++) {
+                char c = key.charAt(i);
+                if (c < 0x20 || c > 0x7E || c == '"' || c == '\\') {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A number as parsed under Options.lazyNumbers():  the literal's text, converted
+     * on first use and then cached.  toString() returns the literal as it appeared
+     * in the input, and two JsonNumbers are equal if their literals are (so, as with
+     * BigDecimal, 2.0 and 2.00 are not).
+     */
+    public static final class JsonNumber extends Number {
+        private static final long serialVersionUID = 1L;
+        private final String text;
+        private Number value;
+        private BigDecimal decimal;
+
+        public JsonNumber(String text) {
+            this.text = text;
+        }
+
+        /**
+         * @return the Long or Double that parse() makes of this literal without lazyNumbers()
+         */
+        public Number value() {
+            Number v = value;
+            if (v == null) {
+                v = isIntegral() && text.length() <= 20 ? parseLong(text) : null;
+                if (v == null) {
+                    v = Double.valueOf(text);
+                }
+                value = v;
+            }
+            return v;
+        }
+
+        /**
+         * @return the exact value of this literal (however many digits it has)
+         * @throws NumberFormatException if its exponent is beyond BigDecimal's (an int)
+         */
+        public BigDecimal bigDecimalValue() {
+            BigDecimal d = decimal;
+            if (d == null) {
+                d = new BigDecimal(text);
+                decimal = d;
+            }
+            return d;
+        }
+
+        /**
+         * @return the integer part of this literal, exactly (see BigDecimal.toBigInteger())
+         */
+        public BigInteger bigIntegerValue() {
+            return isIntegral() ? new BigInteger(text) : bigDecimalValue().toBigInteger();
+        }
+
+        /**
+         * @return true if the literal has no decimal point and no exponent
+         */
+        public boolean isIntegral() {
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '.' || c == 'e' || c == 'E') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public int intValue() {
+            return (int) longValue();
+        }
+
+        public long longValue() {
+            return value().longValue();
+        }
+
+        public float floatValue() {
+            return (float) doubleValue();
+        }
+
+        public double doubleValue() {
+            return value().doubleValue();
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof JsonNumber && text.equals(((JsonNumber) o).text);
+        }
+
+        public int hashCode() {
+            return text.hashCode();
+        }
+
+        public String toString() {
+            return text;
+        }
+
+        private static Long parseLong(String s) {
+            try {
+                long l = Long.parseLong(s);
+                return l == 0 ? ZERO : Long.valueOf(l);
+            } catch (NumberFormatException overflow) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reusable parser:  keeps its input window, scratch buffer, key shapes and (unless
+     * the Options supply one) key symbol table from one parse to the next, so parsing
+     * many small documents allocates little beyond the results.  Buffers that grow past 1 MB are
+     * not kept, and neither is a full symbol table (nor a key over MAX_KEY_LENGTH chars).
+     * <p>
+     * Not thread-safe.  The static parse methods use one JsonReader per thread.
+     */
+    public static final class JsonReader {
+        private final Options opts;
+        private final static int MAX_KEY_LENGTH = 64;
+        private final Java2Json p = new Java2Json();
+        private char[] chars;
+        private byte[] window;
+        private SymbolTable keys;
+        private boolean inUse;
+
+        public JsonReader() {
+            this(DEFAULTS);
+        }
+
+        public JsonReader(Options opts) {
+            this.opts = opts;
+        }
+
+        /**
+         * @see Java2Json#parse(String)
+         */
+        public Object parse(String json) {
+            return parse(json, opts, null);
+        }
+
+        /**
+         * @see Java2Json#parse(Reader)
+         */
+        public Object parse(Reader reader) throws IOException {
+            return parse(reader, opts, null);
+        }
+
+        /**
+         * @see Java2Json#parse(InputStream)
+         */
+        public Object parse(InputStream in) throws IOException {
+            return parse(in, opts, null);
+        }
+
+        /**
+         * @see Java2Json#parse(byte[], int, int)
+         */
+        public Object parse(byte[] utf8, int off, int len) {
+            return parse(utf8, off, len, opts, null);
+        }
+
+        /**
+         * @see Java2Json#parse(String, Class)
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T parse(String json, Class<T> type) {
+            return (T) parse(json, opts, type);
+        }
+
+        /**
+         * @see Java2Json#parse(Reader, Class)
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T parse(Reader reader, Class<T> type) throws IOException {
+            return (T) parse(reader, opts, type);
+        }
+
+        /**
+         * @see Java2Json#parse(InputStream, Class)
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T parse(InputStream in, Class<T> type) throws IOException {
+            return (T) parse(in, opts, type);
+        }
+
+        /**
+         * @see Java2Json#parse(byte[], int, int, Class)
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T parse(byte[] utf8, int off, int len, Class<T> type) {
+            return (T) parse(utf8, off, len, opts, type);
+        }
+
+        /**
+         * @see Java2Json#parse(ByteBuffer)
+         */
+        public Object parse(ByteBuffer utf8) {
+            return parse(utf8, opts, null);
+        }
+
+        /**
+         * @see Java2Json#parse(String, JsonHandler)
+         */
+        public void parse(String json, JsonHandler handler) {
+            parse(json, opts, handler);
+        }
+
+        /**
+         * @see Java2Json#parse(Reader, JsonHandler)
+         */
+        public void parse(Reader reader, JsonHandler handler) throws IOException {
+            parse(reader, opts, handler);
+        }
+
+        /**
+         * @see Java2Json#parse(InputStream, JsonHandler)
+         */
+        public void parse(InputStream in, JsonHandler handler) throws IOException {
+            parse(in, opts, handler);
+        }
+
+        /**
+         * @see Java2Json#parse(byte[], int, int, JsonHandler)
+         */
+        public void parse(byte[] utf8, int off, int len, JsonHandler handler) {
+            parse(utf8, off, len, opts, handler);
+        }
+
+        private Object parse(String json, Options opts, Object target) {
+            int len = json.length();
+            char[] c = chars(len);
+            json.getChars(0, len, c, 0);
+            return run(p.reset(c, null, 0, len), opts, false, target);
+        }
+
+        private Object parse(Reader reader, Options opts, Object target) throws IOException {
+            p.reset(chars(WINDOW_SIZE), null, 0, 0).reader = reader;
+            try {
+                return run(p, opts, false, target);
+            } catch (UncheckedIOException uioe) {
+                throw uioe.getCause();
+            }
+        }
+
+        private Object parse(InputStream in, Options opts, Object target) throws IOException {
+            p.reset(null, window(), 0, 0).in = in;
+            try {
+                return run(p, opts, true, target);
+            } catch (UncheckedIOException uioe) {
+                throw uioe.getCause();
+            }
+        }
+
+        private Object parse(byte[] utf8, int off, int len, Options opts, Object target) {
+            if (off < 0 || len < 0 || off + len > utf8.length || off + len < 0) {
+                throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " length=" + utf8.length);
+            }
+            return run(p.reset(null, utf8, off, off + len), opts, false, target);
+        }
+
+        private Object parse(ByteBuffer utf8, Options opts, Object target) {
+            if (utf8.hasArray()) {
+                int off = utf8.arrayOffset() + utf8.position();
+                return run(p.reset(null, utf8.array(), off, off + utf8.remaining()), opts, false, target);
+            } else {
+                p.reset(null, window(), 0, 0).srcs = new ByteBuffer[]{utf8.duplicate()};
+                return run(p, opts, true, target);
+            }
+        }
+
+        private char[] chars(int minLength) {
+            if (chars != null && chars.length >= minLength) {
+                return chars;
+            }
+            char[] c = new char[Math.max(minLength, WINDOW_SIZE)];
+            if (c.length <= MAX_RETAINED) {
+                chars = c;
+            }
+            return c;
+        }
+
+        private byte[] window() {
+            if (window == null) {
+                window = new byte[WINDOW_SIZE];
+            }
+            return window;
+        }
+
+        /**
+         * @param windowed true if p.bytes is this reader's window (and not the caller's input)
+         * @param target   the class (or generic type) to bind to, a JsonHandler, or null for Maps and Lists
+         */
+        private Object run(Java2Json p, Options opts, boolean windowed, Object target) {
+            p.with(opts);
+            if (p.keys == null) {
+                p.keys = keys != null ? keys : new SymbolTable(4096, MAX_KEY_LENGTH);
+            }
+            try {
+                if (target instanceof JsonHandler) {
+                    Java2Json.parse(p, (JsonHandler) target);
+                    return null;
+                }
+                return Java2Json.parse(p, (Type) target);
+            } finally {
+                // A full table dedups no new keys, so the next parse starts a fresh one.
+                if (opts.keys == null) {
+                    keys = p.keys.size < p.keys.maxEntries ? p.keys : null;
+                }
+                // Keep a window that grew to fit a long token, within reason.
+                if (p.json != null && p.json.length <= MAX_RETAINED && (chars == null || p.json.length > chars.length)) {
+                    chars = p.json;
+                }
+                if (windowed && p.bytes.length > window.length && p.bytes.length <= MAX_RETAINED) {
+                    window = p.bytes;
+                }
+                if (p.scratch != null && p.scratch.capacity() > MAX_RETAINED) {
+                    p.scratch = null;
+                }
+                // A full shape tree predicts nothing new, so start over.
+                if (p.shapeCount >= Shape.MAX_SHAPES) {
+                    p.shapes = null;
+                    p.shapeCount = 0;
+                }
+                p.reset(null, null, 0, 0);
+            }
+        }
+    }
+
+    /**
+     * Push parser for UTF-8 JSON that arrives in chunks (e.g., from a non-blocking
+     * socket):  each feed() consumes a whole chunk and calls the JsonHandler for every
+     * value completed so far, keeping its state (inside a string, an escape, a
+     * multi-byte character or a number) until the next chunk.  A token that spans
+     * chunks is held in a small buffer, and everything else is parsed in place.
+     * <p>
+     * The input may hold any number of top-level values, separated by optional
+     * whitespace (e.g., newline-delimited JSON).  Call endOfInput() once the source
+     * is exhausted:  it completes a trailing top-level number and checks that no
+     * value was left unfinished.  After an error the parser cannot be fed any more.
+     * <p>
+     * Not thread-safe, but it holds no thread:  one per connection, fed from
+     * whichever thread the data arrives on.
+     */
+    public static final class JsonPushParser {
+        private final static int EXPECT_VALUE = 0;
+        private final static int FIRST_ELEMENT = 1;
+        private final static int EXPECT_ELEMENT = 2;
+        private final static int FIRST_MEMBER = 3;
+        private final static int EXPECT_MEMBER = 4;
+        private final static int EXPECT_KEY = 5;
+        private final static int EXPECT_COLON = 6;
+        private final static int AFTER_VALUE = 7;
+        private final static int IN_KEY = 8;
+        private final static int IN_STRING = 9;
+        private final static int IN_NUMBER = 10;
+        private final static int IN_LITERAL = 11;
+        private final static int FAILED = 12;
+
+        private final JsonHandler handler;
+        private final TreeBuilder tree;
+        private final Consumer<Object> values;
+        private final Java2Json p = new Java2Json();
+        private int state = EXPECT_VALUE;
+
+        // One flag per open container:  true for an object, false for an array.
+        private boolean[] objects = new boolean[16];
+        private int depth;
+
+        // The token in progress starts at tokenStart in the current chunk, or else its
+        // bytes so far (from earlier chunks) are in pending[].
+        private int tokenStart;
+        private byte[] pending = new byte[64];
+        private int pendingSize;
+        private boolean escaped;
+        private boolean plain;
+        private byte[] chunk;
+
+        /**
+         * @param handler receives every value, as it is completed
+         */
+        public JsonPushParser(JsonHandler handler) {
+            this(handler, DEFAULTS);
+        }
+
+        /**
+         * @param handler receives every value, as it is completed
+         * @param opts    the limits to enforce (the other options do not apply);  maxTokens
+         *                counts the values of the whole input, not of each top-level value
+         */
+        public JsonPushParser(JsonHandler handler, Options opts) {
+            this.handler = handler;
+            this.tree = null;
+            this.values = null;
+            p.with(opts);
+        }
+
+        /**
+         * @param values receives each top-level value (built as parse(String) would)
+         *               as soon as its last byte has been fed
+         */
+        public JsonPushParser(Consumer<Object> values) {
+            this(values, DEFAULTS);
+        }
+
+        public JsonPushParser(Consumer<Object> values, Options opts) {
+            this.tree = new TreeBuilder();
+            this.handler = tree;
+            this.values = values;
+            p.with(opts);
+        }
+
+        /**
+         * Parses the bytes between the buffer's position and limit, and then moves
+         * its position to its limit.
+         */
+        public void feed(ByteBuffer utf8) {
+            if (utf8.hasArray()) {
+                feed(utf8.array(), utf8.arrayOffset() + utf8.position(), utf8.remaining());
+            } else {
+                if (chunk == null) {
+                    chunk = new byte[WINDOW_SIZE];
+                }
+                ByteBuffer src = utf8.duplicate();
+                while (src.hasRemaining()) {
+                    int n = Math.min(src.remaining(), chunk.length);
+                    src.get(chunk, 0, n);
+                    feed(chunk, 0, n);
+                }
+            }
+            utf8.position(utf8.limit());
+        }
+
+        public void feed(byte[] utf8, int off, int len) {
+            if (off < 0 || len < 0 || off + len > utf8.length || off + len < 0) {
+                throw new IndexOutOfBoundsException("off=" + off + " len=" + len + " length=" + utf8.length);
+            }
+            if (state == FAILED) {
+                throw new IllegalStateException("JsonPushParser failed on earlier input");
+            }
+            int end = off + len;
+            int i = off;
+            try {
+                while (i < end) {
+                    if (state >= IN_KEY) {
+                        int tokenEnd = scan(utf8, i, end);
+                        if (tokenEnd < 0) {
+                            break;
+                        }
+                        if (state >= IN_NUMBER && !isNumberEnd(utf8[tokenEnd])) {
+                            throw new RuntimeException("expected whitespace or comma or bracket but found: " + (char) (utf8[tokenEnd] & 0xFF));
+                        }
+                        if (pendingSize > 0) {
+                            append(utf8, i, tokenEnd);
+                            token(pending, 0, pendingSize);
+                            pendingSize = 0;
+                        } else {
+                            token(utf8, tokenStart, tokenEnd);
+                        }
+                        i = tokenEnd;
+                        continue;
+                    }
+                    byte b = utf8[i];
+                    // As in parse(), a comma may follow the opening bracket, or come
+                    // right before the closing one.
+                    if (b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+                        if (state == EXPECT_ELEMENT) {
+                            state = EXPECT_VALUE;
+                        } else if (state == EXPECT_MEMBER) {
+                            state = EXPECT_KEY;
+                        }
+                        i++;
+                        continue;
+                    }
+                    switch (state) {
+                        case FIRST_MEMBER:
+                        case EXPECT_MEMBER:
+                            if (b == ',' && state == FIRST_MEMBER) {
+                                state = EXPECT_MEMBER;
+                            } else if (b == '}') {
+                                close();
+                            } else {
+                                key(b, i);
+                            }
+                            break;
+                        case EXPECT_KEY:
+                            key(b, i);
+                            break;
+                        case EXPECT_COLON:
+                            if (b != ':') {
+                                throw new RuntimeException("Expected whitespace or : but got: " + (char) (b & 0xFF));
+                            }
+                            state = EXPECT_VALUE;
+                            break;
+                        case AFTER_VALUE:
+                            char closingBracket = objects[depth - 1] ? '}' : ']';
+                            if (b == ',') {
+                                state = objects[depth - 1] ? EXPECT_MEMBER : EXPECT_ELEMENT;
+                            } else if (b == closingBracket) {
+                                close();
+                            } else {
+                                throw new RuntimeException("expected whitespace or comma or " + closingBracket + " but found: " + (char) (b & 0xFF));
+                            }
+                            break;
+                        case FIRST_ELEMENT:
+                        case EXPECT_ELEMENT:
+                            if (b == ',' && state == FIRST_ELEMENT) {
+                                state = EXPECT_ELEMENT;
+                            } else if (b == ']') {
+                                close();
+                            } else {
+                                value(b, i);
+                            }
+                            break;
+                        default:
+                            value(b, i);
+                    }
+                    i++;
+                }
+                if (state >= IN_KEY) {
+                    append(utf8, pendingSize > 0 ? off : tokenStart, end);
+                }
+            } catch (RuntimeException re) {
+                state = FAILED;
+                throw re;
+            }
+        }
+
+        /**
+         * Signals that no more input will be fed.
+         *
+         * @throws RuntimeException if the input ended inside a value
+         */
+        public void endOfInput() {
+            if (state == FAILED) {
+                throw new IllegalStateException("JsonPushParser failed on earlier input");
+            }
+            try {
+                if (depth == 0 && (state == IN_NUMBER || state == IN_LITERAL)) {
+                    token(pending, 0, pendingSize);
+                    pendingSize = 0;
+                }
+                if (state == IN_KEY || state == IN_STRING) {
+                    throw new RuntimeException("never found literal string terminator \"");
+                } else if (state != EXPECT_VALUE || depth > 0) {
+                    throw new RuntimeException("input ended inside " + (depth > 0 && objects[depth - 1] ? "an object" : "an array"));
+                }
+            } catch (RuntimeException re) {
+                state = FAILED;
+                throw re;
+            }
+        }
+
+        private void key(byte b, int i) {
+            if (b != '"') {
+                throw new RuntimeException("json expecting double-quote: " + (char) (b & 0xFF));
+            }
+            start(IN_KEY, i);
+        }
+
+        private void value(byte b, int i) {
+            p.countToken();
+            if (b == '{') {
+                push(true);
+                state = FIRST_MEMBER;
+                handler.startObject();
+            } else if (b == '[') {
+                push(false);
+                state = FIRST_ELEMENT;
+                handler.startArray();
+            } else if (b == '"') {
+                start(IN_STRING, i);
+            } else if (b == '-' || (b >= '0' && b <= '9')) {
+                start(IN_NUMBER, i);
+            } else if (b == 't' || b == 'f' || b == 'n') {
+                start(IN_LITERAL, i);
+            } else {
+                throw new RuntimeException("Expected whitespace or JSON literal, but got: " + (char) (b & 0xFF));
+            }
+        }
+
+        private void start(int token, int i) {
+            state = token;
+            tokenStart = i;
+            escaped = false;
+            plain = true;
+        }
+
+        private void push(boolean object) {
+            if (depth == p.maxDepth) {
+                throw limitException("nesting depth", p.maxDepth, "");
+            }
+            if (depth == objects.length) {
+                objects = Arrays.copyOf(objects, depth * 2);
+            }
+            objects[depth++] = object;
+        }
+
+        private void close() {
+            if (objects[--depth]) {
+                handler.endObject();
+            } else {
+                handler.endArray();
+            }
+            completed();
+        }
+
+        private void completed() {
+            if (depth > 0) {
+                state = AFTER_VALUE;
+            } else {
+                state = EXPECT_VALUE;
+                if (values != null) {
+                    values.accept(tree.result());
+                }
+            }
+        }
+
+        /**
+         * Looks for the end of the token in progress, from buf[i] (the opening quote or
+         * first char has already been seen).
+         *
+         * @return the index just past the token, or -1 if it continues past end
+         */
+        private int scan(byte[] buf, int i, int end) {
+            if (state == IN_NUMBER) {
+                for (; i < end; i++) {
+                    byte b = buf[i];
+                    if ((b < '0' || b > '9') && b != '.' && b != 'e' && b != 'E' && b != '-' && b != '+') {
+                        return i;
+                    }
+                }
+            } else if (state == IN_LITERAL) {
+                for (; i < end; i++) {
+                    byte b = buf[i];
+                    if (b < 'a' || b > 'z') {
+                        return i;
+                    }
+                }
+            } else {
+                for (; i < end; i++) {
+                    byte b = buf[i];
+                    if (b == '"' && !escaped) {
+                        return i + 1;
+                    } else if (b < 0x20) {
+                        plain = false;
+                    }
+                    if (escaped) {
+                        escaped = false;
+                    } else if (b == '\\') {
+                        escaped = true;
+                        plain = false;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private void append(byte[] buf, int from, int to) {
+            int n = to - from;
+            if (state == IN_NUMBER) {
+                checkNumberLength(p, pendingSize + n);
+            } else if (pendingSize + n > 6L * p.maxStringLength + 2) {
+                checkStringLength(p, (pendingSize + n) / 6);
+            }
+            if (pendingSize + n > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingSize + n));
+            }
+            System.arraycopy(buf, from, pending, pendingSize, n);
+            pendingSize += n;
+        }
+
+        /**
+         * Parses the complete token in buf[from, to) with the pull tokenizer, which
+         * validates and decodes it exactly as parse() would.  Plain (escape-free ASCII)
+         * strings, already checked by scan(), are passed straight to the handler.
+         */
+        private void token(byte[] buf, int from, int to) {
+            p.reset(null, buf, from, to);
+            if (plain && state <= IN_STRING) {
+                if (p.slice == null) {
+                    p.slice = new Slice();
+                }
+                checkStringLength(p, to - from - 2);
+                p.slice.set(null, buf, from + 1, to - from - 2);
+            }
+            switch (state) {
+                case IN_KEY:
+                    state = EXPECT_COLON;
+                    handler.key(plain ? p.slice : nextSlice(p));
+                    return;
+                case IN_STRING:
+                    handler.string(plain ? p.slice : nextSlice(p));
+                    break;
+                case IN_NUMBER:
+                    if (scanNumber(p)) {
+                        handler.longValue(p.longValue);
+                    } else {
+                        handler.doubleValue(p.doubleValue);
+                    }
+                    break;
+                default:
+                    if (buf[from] == 'n') {
+                        nextNull(p);
+                        checkLiteralEnd(p);
+                        handler.nullValue();
+                    } else {
+                        boolean b = nextBoolean(p);
+                        checkLiteralEnd(p);
+                        handler.bool(b);
+                    }
+            }
+            completed();
+        }
+
+        private static void checkLiteralEnd(Java2Json p) {
+            if (p.pos < p.limit) {
+                throw new RuntimeException("expected whitespace or comma or bracket but found: " + p.charAt(p.pos));
+            }
+        }
+    }
+
+    /**
+     * Reusable formatter:  keeps its output buffer (and UTF-8 encoding buffer) from
+     * one call to the next.  Buffers that grow past 1 MB are not kept.
+     * <p>
+     * Not thread-safe.  The static format and write methods use one JsonWriter per thread.
+     */
+    public static final class JsonWriter {
+        private final boolean pretty;
+        private StringBuilder buf = new StringBuilder(1024);
+        private Utf8Sink utf8;
+        private CborSink cbor;
+        private boolean inUse;
+
+        public JsonWriter() {
+            this(false);
+        }
+
+        /**
+         * @param pretty true to indent the output
+         */
+        public JsonWriter(boolean pretty) {
+            this.pretty = pretty;
+        }
+
+        /**
+         * @see Java2Json#format(boolean, Object)
+         */
+        public String format(Object o) {
+            return format(pretty, o);
+        }
+
+        /**
+         * @see Java2Json#format(boolean, Object, Appendable)
+         */
+        public void format(Object o, Appendable out) throws IOException {
+            format(pretty, o, out);
+        }
+
+        /**
+         * @see Java2Json#write(boolean, Object, OutputStream)
+         */
+        public void write(Object o, OutputStream out) throws IOException {
+            write(pretty, o, out);
+        }
+
+        /**
+         * @see Java2Json#toCbor(Object)
+         */
+        public byte[] toCbor(Object o) {
+            CborSink sink = cbor();
+            try {
+                sink.value(o);
+                return Arrays.copyOf(sink.bytes, sink.size);
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            } finally {
+                sink.reset();
+            }
+        }
+
+        /**
+         * @see Java2Json#writeCbor(Object, OutputStream)
+         */
+        public void writeCbor(Object o, OutputStream out) throws IOException {
+            CborSink sink = cbor();
+            sink.out = out;
+            try {
+                sink.value(o);
+                out.write(sink.bytes, 0, sink.size);
+                out.flush();
+            } finally {
+                sink.reset();
+            }
+        }
+
+        private CborSink cbor() {
+            if (cbor == null) {
+                cbor = new CborSink();
+            }
+            return cbor;
+        }
+
+        private String format(boolean pretty, Object o) {
+            try {
+                Java2Json.format(pretty, o, buf, null);
+                return buf.toString();
+            } finally {
+                clear();
+            }
+        }
+
+        private void format(boolean pretty, Object o, Appendable out) throws IOException {
+            if (out instanceof StringBuilder) {
+                Java2Json.format(pretty, o, (StringBuilder) out, null);
+                return;
+            }
+            try {
+                Java2Json.format(pretty, o, buf, out);
+                out.append(buf);
+            } catch (UncheckedIOException uioe) {
+                throw uioe.getCause();
+            } finally {
+                clear();
+            }
+        }
+
+        private void write(boolean pretty, Object o, OutputStream out) throws IOException {
+            if (utf8 == null) {
+                utf8 = new Utf8Sink();
+            }
+            utf8.out = out;
+            try {
+                format(pretty, o, utf8);
+                utf8.flush();
+            } finally {
+                utf8.reset();
+            }
+        }
+
+        private void clear() {
+            if (buf.capacity() > MAX_RETAINED) {
+                buf = new StringBuilder(1024);
+            } else {
+                buf.setLength(0);
+            }
+        }
+    }
+
+    /**
+     * The CharSequence passed to a JsonHandler:  a view of chars[] or of ASCII bytes[]
+     * in the input buffer, or of an already decoded literal.
+     */
+    private static final class Slice implements CharSequence {
+        private char[] chars;
+        private byte[] bytes;
+        private CharSequence decoded;
+        private int off;
+        private int len;
+
+        Slice set(char[] chars, byte[] bytes, int off, int len) {
+            this.chars = chars;
+            this.bytes = bytes;
+            this.decoded = null;
+            this.off = off;
+            this.len = len;
+            return this;
+        }
+
+        Slice set(CharSequence decoded) {
+            set(null, null, 0, decoded.length());
+            this.decoded = decoded;
+            return this;
+        }
+
+        public int length() {
+            return len;
+        }
+
+        public char charAt(int i) {
+            if (i < 0 || i >= len) {
+                throw new IndexOutOfBoundsException("index=" + i + " length=" + len);
+            }
+            if (chars != null) {
+                return chars[off + i];
+            } else if (bytes != null) {
+                return (char) bytes[off + i];
+            } else {
+                return decoded.charAt(i);
+            }
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > len || start > end) {
+                throw new IndexOutOfBoundsException("start=" + start + " end=" + end + " length=" + len);
+            }
+            if (chars != null) {
+                return new String(chars, off + start, end - start);
+            } else if (bytes != null) {
+                return new String(bytes, off + start, end - start, StandardCharsets.ISO_8859_1);
+            } else {
+                return decoded.subSequence(start, end).toString();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, len).toString();
+        }
+    }
+
+    /**
+     * Encodes to UTF-8 through a reused byte[] for JsonWriter.write().  Unpaired
+     * surrogates become '?', the same as with an OutputStreamWriter.
+     */
+    private static final class Utf8Sink implements Appendable {
+        private final byte[] bytes = new byte[WINDOW_SIZE];
+        private OutputStream out;
+        private int size;
+        private char high;
+
+        public Appendable append(CharSequence cs) throws IOException {
+            return append(cs, 0, cs.length());
+        }
+
+        public Appendable append(CharSequence cs, int start, int end) throws IOException {
+            for (int i = start; i < end; i++) {
+                append(cs.charAt(i));
+            }
+            return this;
+        }
+
+        public Appendable append(char c) throws IOException {
+            if (size > bytes.length - 5) {
+                out.write(bytes, 0, size);
+                size = 0;
+            }
+            if (high != 0) {
+                char h = high;
+                high = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int cp = Character.toCodePoint(h, c);
+                    bytes[size++] = (byte) (0xF0 | cp >> 18);
+                    bytes[size++] = (byte) (0x80 | (cp >> 12 & 0x3F));
+                    bytes[size++] = (byte) (0x80 | (cp >> 6 & 0x3F));
+                    bytes[size++] = (byte) (0x80 | (cp & 0x3F));
+                    return this;
+                }
+                bytes[size++] = '?';
+            }
+            if (c < 0x80) {
+                bytes[size++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[size++] = (byte) (0xC0 | c >> 6);
+                bytes[size++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c)) {
+                high = c;
+            } else if (Character.isLowSurrogate(c)) {
+                bytes[size++] = '?';
+            } else {
+                bytes[size++] = (byte) (0xE0 | c >> 12);
+                bytes[size++] = (byte) (0x80 | (c >> 6 & 0x3F));
+                bytes[size++] = (byte) (0x80 | (c & 0x3F));
+            }
+            return this;
+        }
+
+        void flush() throws IOException {
+            if (high != 0) {
+                high = 0;
+                bytes[size++] = '?';
+            }
+            out.write(bytes, 0, size);
+            size = 0;
+            out.flush();
+        }
+
+        void reset() {
+            out = null;
+            size = 0;
+            high = 0;
+        }
+    }
+
+    private final static ClassValue<Codec> CODECS = new ClassValue<Codec>() {
+        protected Codec computeValue(Class<?> c) {
+            try {
+                return Codec.of(c);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                throw new RuntimeException("cannot generate JSON codec for " + c.getName() + ": " + e, e);
+            }
+        }
+    };
+
+    /**
+     * The properties of a JavaBean (from its public getters and setters, in name
+     * order) or record (its components, in declaration order), with MethodHandles
+     * to read, write and create instances, built once per class.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final class Codec {
+        final static Codec NONE = new Codec(new String[0], new Type[0], null, null, null, false);
+
+        // java.lang.Record support, looked up reflectively since we target Java 8.
+        private final static Method RECORD_COMPONENTS;
+        private final static Method COMPONENT_NAME;
+        private final static Method COMPONENT_TYPE;
+        private final static Method COMPONENT_ACCESSOR;
+
+        static {
+            Method[] m = new Method[4];
+            try {
+                m[0] = Class.class.getMethod("getRecordComponents");
+                Class<?> rc = Class.forName("java.lang.reflect.RecordComponent");
+                m[1] = rc.getMethod("getName");
+                m[2] = rc.getMethod("getGenericType");
+                m[3] = rc.getMethod("getAccessor");
+            } catch (ReflectiveOperationException roe) {
+                m = new Method[4];
+            }
+            RECORD_COMPONENTS = m[0];
+            COMPONENT_NAME = m[1];
+            COMPONENT_TYPE = m[2];
+            COMPONENT_ACCESSOR = m[3];
+        }
+
+        final String[] names;
+        final Type[] types;
+        final MethodHandle[] getters;  // (Object)Object, null if write-only
+        final MethodHandle[] setters;  // (Object,Object)void, null if read-only
+        final MethodHandle creator;    // beans:  ()Object, records:  (Object[])Object, null if neither
+        final boolean isRecord;
+        final Object[] defaults;
+        final Map<String, Integer> index = new HashMap<String, Integer>();
+        final int readable;
+
+        private Codec(
+                String[] names, Type[] types, MethodHandle[] getters, MethodHandle[] setters,
+                MethodHandle creator, boolean isRecord
+        ) {
+            this.names = names;
+            this.types = types;
+            this.getters = getters;
+            this.setters = setters;
+            this.creator = creator;
+            this.isRecord = isRecord;
+            this.defaults = new Object[names.length];
+            int readable = 0;
+            for (int i = 0; i < names.length; i++) {
+                index.put(names[i], i);
+                Class raw = rawClass(types[i]);
+                if (raw.isPrimitive()) {
+                    defaults[i] = Array.get(Array.newInstance(raw, 1), 0);
+                }
+                if (getters[i] != null) {
+                    readable++;
+                }
+            }
+            this.readable = readable;
+        }
+
+        static Codec of(Class<?> c) throws ReflectiveOperationException {
+            String name = c.getName();
+            if (c.isPrimitive() || c.isArray() || c.isInterface() || Enum.class.isAssignableFrom(c)
+                    || CharSequence.class.isAssignableFrom(c) || Character.class == c
+                    || name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("jdk.")
+                    || name.startsWith("sun.") || name.startsWith("com.sun.")) {
+                return NONE;
+            }
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            if (RECORD_COMPONENTS != null && c.getSuperclass() != null && "java.lang.Record".equals(c.getSuperclass().getName())) {
+                Object[] components = (Object[]) RECORD_COMPONENTS.invoke(c);
+                String[] names = new String[components.length];
+                Type[] types = new Type[components.length];
+                Class[] rawTypes = new Class[components.length];
+                MethodHandle[] getters = new MethodHandle[components.length];
+                for (int i = 0; i < components.length; i++) {
+                    names[i] = (String) COMPONENT_NAME.invoke(components[i]);
+                    types[i] = (Type) COMPONENT_TYPE.invoke(components[i]);
+                    Method accessor = (Method) COMPONENT_ACCESSOR.invoke(components[i]);
+                    rawTypes[i] = accessor.getReturnType();
+                    getters[i] = getter(lookup, accessor);
+                }
+                Constructor ctor = c.getDeclaredConstructor(rawTypes);
+                accessible(ctor);
+                MethodHandle creator = lookup.unreflectConstructor(ctor)
+                        .asSpreader(Object[].class, components.length)
+                        .asType(MethodType.methodType(Object.class, Object[].class));
+                return new Codec(names, types, getters, new MethodHandle[components.length], creator, true);
+            }
+
+            // [0] = getter, [1] = setter
+            Map<String, Method[]> properties = new TreeMap<String, Method[]>();
+            for (Method m : c.getMethods()) {
+                String methodName = m.getName();
+                int params = m.getParameterTypes().length;
+                if (Modifier.isStatic(m.getModifiers()) || m.isBridge() || m.isSynthetic()) {
+                    continue;
+                }
+                if (params == 0 && m.getReturnType() != void.class && !"getClass".equals(methodName)
+                        && (methodName.length() > 3 && methodName.startsWith("get")
+                        || methodName.length() > 2 && methodName.startsWith("is") && m.getReturnType() == boolean.class)) {
+                    String property = propertyName(methodName.substring(methodName.startsWith("is") ? 2 : 3));
+                    property(properties, property)[0] = m;
+                } else if (params == 1 && methodName.length() > 3 && methodName.startsWith("set")) {
+                    Method[] accessors = property(properties, propertyName(methodName.substring(3)));
+                    // Prefer the setter that takes what the getter returns.
+                    if (accessors[1] == null || accessors[0] != null && m.getParameterTypes()[0] == accessors[0].getReturnType()) {
+                        accessors[1] = m;
+                    }
+                }
+            }
+            if (properties.isEmpty()) {
+                return NONE;
+            }
+            String[] names = properties.keySet().toArray(new String[0]);
+            Type[] types = new Type[names.length];
+            MethodHandle[] getters = new MethodHandle[names.length];
+            MethodHandle[] setters = new MethodHandle[names.length];
+            int i = 0;
+            for (Method[] accessors : properties.values()) {
+                if (accessors[0] != null) {
+                    getters[i] = getter(lookup, accessors[0]);
+                    types[i] = accessors[0].getGenericReturnType();
+                }
+                if (accessors[1] != null && (accessors[0] == null || accessors[1].getParameterTypes()[0] == accessors[0].getReturnType())) {
+                    accessible(accessors[1]);
+                    setters[i] = lookup.unreflect(accessors[1])
+                            .asType(MethodType.methodType(void.class, Object.class, Object.class));
+                    types[i] = accessors[1].getGenericParameterTypes()[0];
+                }
+                i++;
+            }
+            MethodHandle creator = null;
+            if (!Modifier.isAbstract(c.getModifiers())) {
+                try {
+                    Constructor ctor = c.getDeclaredConstructor();
+                    accessible(ctor);
+                    creator = lookup.unreflectConstructor(ctor).asType(MethodType.methodType(Object.class));
+                } catch (NoSuchMethodException nsme) {
+                    // Can be formatted, but not parsed into.
+                }
+            }
+            return new Codec(names, types, getters, setters, creator, false);
+        }
+
+        private static Method[] property(Map<String, Method[]> properties, String name) {
+            Method[] accessors = properties.get(name);
+            if (accessors == null) {
+                accessors = new Method[2];
+                properties.put(name, accessors);
+            }
+            return accessors;
+        }
+
+        // The JavaBeans rule:  "getFoo" is "foo", but "getURL" is "URL".
+        private static String propertyName(String s) {
+            if (s.length() > 1 && Character.isUpperCase(s.charAt(0)) && Character.isUpperCase(s.charAt(1))) {
+                return s;
+            }
+            return Character.toLowerCase(s.charAt(0)) + s.substring(1);
+        }
+
+        private static MethodHandle getter(MethodHandles.Lookup lookup, Method m) throws IllegalAccessException {
+            accessible(m);
+            return lookup.unreflect(m).asType(MethodType.methodType(Object.class, Object.class));
+        }
+
+        // For public members of non-public classes.  Otherwise, unreflect() decides.
+        private static void accessible(java.lang.reflect.AccessibleObject o) {
+            try {
+                o.setAccessible(true);
+            } catch (RuntimeException re) {
+                // e.g., InaccessibleObjectException for a package its module does not open.
+            }
+        }
+
+        Object get(int i, Object bean) {
+            try {
+                return (Object) getters[i].invokeExact(bean);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+
+        /**
+         * Reads the rest of a JSON object (just after its '{') into a new instance.
+         */
+        Object read(Java2Json p) {
+            try {
+                Object[] args = isRecord ? defaults.clone() : null;
+                Object bean = isRecord ? null : (Object) creator.invokeExact();
+                while (hasNextItem(p, '}')) {
+                    String key = nextKey(p);
+                    nextChar(p, ':');
+                    int type = nextObject(p);
+                    Integer i = index.get(key);
+                    if (i == null || !isRecord && setters[i] == null) {
+                        skipValue(type, p);
+                        continue;
+                    }
+                    Object val = bind(type, p, types[i]);
+                    if (val == null && defaults[i] != null) {
+                        continue;
+                    } else if (isRecord) {
+                        args[i] = val;
+                    } else {
+                        setters[i].invokeExact(bean, val);
+                    }
+                }
+                return isRecord ? (Object) creator.invokeExact(args) : bean;
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+    }
+
+    /**
+     * Read-only Map view of a JavaBean's or record's readable properties, for prettyPrint().
+     */
+    private static final class BeanMap extends AbstractMap<String, Object> {
+        private final Codec codec;
+        private final Object bean;
+
+        BeanMap(Codec codec, Object bean) {
+            this.codec = codec;
+            this.bean = bean;
+        }
+
+        public Set<Entry<String, Object>> entrySet() {
+            return new AbstractSet<Entry<String, Object>>() {
+                public int size() {
+                    return codec.readable;
+                }
+
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new Iterator<Entry<String, Object>>() {
+                        private int next = advance(0);
+
+                        private int advance(int i) {
+                            while (i < codec.getters.length && codec.getters[i] == null) {
+                                i++;
+                            }
+                            return i;
+                        }
+
+                        public boolean hasNext() {
+                            return next < codec.getters.length;
+                        }
+
+                        public Entry<String, Object> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            int i = next;
+                            next = advance(i + 1);
+                            return new SimpleImmutableEntry<String, Object>(codec.names[i], codec.get(i, bean));
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * CBOR encoder for JsonWriter:  writes into a reused byte[], which is handed to
+     * the OutputStream whenever it fills up (or grows, when there is no OutputStream).
+     */
+    @SuppressWarnings("rawtypes")
+    private static final class CborSink {
+        private byte[] bytes = new byte[WINDOW_SIZE];
+        private OutputStream out;
+        private int size;
+
+        void value(Object o) throws IOException {
+            o = jsonView(o);
+            if (o instanceof Object[]) {
+                o = Arrays.asList((Object[]) o);
+            }
+            if (o == null) {
+                ensure(1);
+                bytes[size++] = (byte) 0xF6;
+            } else if (o instanceof String) {
+                text((String) o);
+            } else if (o instanceof Boolean) {
+                ensure(1);
+                bytes[size++] = (byte) (((Boolean) o) ? 0xF5 : 0xF4);
+            } else if (o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte) {
+                integer(((Number) o).longValue());
+            } else if (o instanceof Double) {
+                decimal((Double) o);
+            } else if (o instanceof Float) {
+                // The double that parse() makes of format()'s Float.toString(), so 0.1f is 0.1.
+                decimal(Double.parseDouble(o.toString()));
+            } else if (o instanceof Number) {
+                // Whatever parse() would make of its text:  a Long or a Double.
+                value(parse(o.toString()));
+            } else if (o instanceof Map) {
+                Map m = (Map) o;
+                head(5, m.size());
+                int n = 0;
+                for (Object e : m.entrySet()) {
+                    Map.Entry me = (Map.Entry) e;
+                    Object key = me.getKey();
+                    text(key instanceof String ? (String) key : String.valueOf(key));
+                    value(me.getValue());
+                    n++;
+                }
+                checkSize(m.size(), n);
+            } else if (o instanceof LongList) {
+                long[] values = ((LongList) o).values;
+                head(4, values.length);
+                for (long value : values) {
+                    integer(value);
+                }
+            } else if (o instanceof DoubleList) {
+                double[] values = ((DoubleList) o).values;
+                head(4, values.length);
+                for (double value : values) {
+                    decimal(value);
+                }
+            } else if (o instanceof Collection) {
+                Collection c = (Collection) o;
+                head(4, c.size());
+                int n = 0;
+                for (Object val : c) {
+                    value(val);
+                    n++;
+                }
+                checkSize(c.size(), n);
+            } else {
+                text(String.valueOf(o));
+            }
+        }
+
+        private static void checkSize(int size, int n) {
+            if (size != n) {
+                throw new RuntimeException("size() is " + size + " but iterated over " + n + " elements");
+            }
+        }
+
+        private void integer(long value) throws IOException {
+            if (value >= 0) {
+                head(0, value);
+            } else {
+                head(1, ~value);
+            }
+        }
+
+        private void decimal(double d) throws IOException {
+            ensure(9);
+            if ((float) d == d || d != d) {
+                bytes[size++] = (byte) 0xFA;
+                int bits = Float.floatToIntBits((float) d);
+                for (int shift = 24; shift >= 0; shift -= 8) {
+                    bytes[size++] = (byte) (bits >>> shift);
+                }
             } else {
-                boolean isValidPlus = false;
-                boolean isValidMinus = minuses > 0 && (contains(s, "e-") || contains(s, "E-"));
-                if (!isValidMinus) {
-                    isValidPlus = plusses > 0 && (contains(s, "e+") || contains(s, "E+"));
+                bytes[size++] = (byte) 0xFB;
+                long bits = Double.doubleToLongBits(d);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    bytes[size++] = (byte) (bits >>> shift);
+                }
+            }
+        }
+
+        /**
+         * Writes the UTF-8 encoding of s (unpaired surrogates become '?', as in write()).
+         */
+        private void text(String s) throws IOException {
+            final int len = s.length();
+            long utf8 = len;
+            for (int i = 0; i < len; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    if (c < 0x800) {
+                        utf8++;
+                    } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        utf8 += 2;
+                        i++;
+                    } else if (!Character.isSurrogate(c)) {
+                        utf8 += 2;
+                    }
+                }
+            }
+            head(3, utf8);
+            for (int i = 0; i < len; i++) {
+                char c = s.charAt(i);
+                if (size > bytes.length - 4) {
+                    ensure(4);
                 }
-                if (!isValidPlus && !isValidMinus) {
-                    throw new RuntimeException("invalid number literal: " + s);
+                if (c < 0x80) {
+                    bytes[size++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[size++] = (byte) (0xC0 | c >> 6);
+                    bytes[size++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    bytes[size++] = (byte) (0xF0 | cp >> 18);
+                    bytes[size++] = (byte) (0x80 | (cp >> 12 & 0x3F));
+                    bytes[size++] = (byte) (0x80 | (cp >> 6 & 0x3F));
+                    bytes[size++] = (byte) (0x80 | (cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    bytes[size++] = '?';
+                } else {
+                    bytes[size++] = (byte) (0xE0 | c >> 12);
+                    bytes[size++] = (byte) (0x80 | (c >> 6 & 0x3F));
+                    bytes[size++] = (byte) (0x80 | (c & 0x3F));
                 }
             }
         }
 
-        if (periods > 1 || eTotal > 1) {
-            throw new RuntimeException("invalid number literal: " + s);
+        private void head(int major, long arg) throws IOException {
+            ensure(9);
+            int type = major << 5;
+            if (arg < 24) {
+                bytes[size++] = (byte) (type | arg);
+                return;
+            }
+            int n;
+            if (arg < 0x100) {
+                bytes[size++] = (byte) (type | 24);
+                n = 1;
+            } else if (arg < 0x10000) {
+                bytes[size++] = (byte) (type | 25);
+                n = 2;
+            } else if (arg < 0x100000000L) {
+                bytes[size++] = (byte) (type | 26);
+                n = 4;
+            } else {
+                bytes[size++] = (byte) (type | 27);
+                n = 8;
+            }
+            for (int shift = (n - 1) * 8; shift >= 0; shift -= 8) {
+                bytes[size++] = (byte) (arg >>> shift);
+            }
         }
 
-        if (isNegative) {
-            s = "-" + s;
+        private void ensure(int n) throws IOException {
+            if (size + n > bytes.length) {
+                if (out != null) {
+                    out.write(bytes, 0, size);
+                    size = 0;
+                } else {
+                    bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + n));
+                }
+            }
         }
-        if (periods == 1 || eTotal == 1) {
-            return new Double(s);
-        } else {
-            try {
-                return new Long(s);
-            } catch (NumberFormatException nfe) {
-                return new Double(s);
+
+        void reset() {
+            out = null;
+            size = 0;
+            if (bytes.length > MAX_RETAINED) {
+                bytes = new byte[WINDOW_SIZE];
             }
         }
     }
 
+    private final static Object UNDECODED = new Object();
 
-    private static int[] charCounts(String s) {
+    /**
+     * Read-only List view over a JSON array recorded by parseLazy().
+     */
+    @SuppressWarnings("rawtypes")
+    private static class LazyList extends AbstractList implements RandomAccess {
+        private final Java2Json doc;
+        private final int at;
+        private int[] slots;
+        private Object[] values;
 
-        // periods, dashes, plusses, lowerOrUpperEs
-        int[] counts = {0, 0, 0, 0};
+        LazyList(Java2Json doc, int at) {
+            this.doc = doc;
+            this.at = at;
+        }
 
-        for (int i = 0; i < s.length(); i++) {
-            switch (s.charAt(i)) {
-                case '.':
-                    counts[0]++;
-                    break;
-                case '-':
-                    counts[1]++;
-                    break;
-                case '+':
-                    counts[2]++;
-                    break;
-                case 'E':
-                case 'e':
-                    counts[3]++;
-                    break;
-                default:
-                    break;
+        public int size() {
+            return doc.tapeCount(at);
+        }
+
+        public Object get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            }
+            if (slots == null) {
+                slots = new int[size()];
+                values = new Object[slots.length];
+                Arrays.fill(values, UNDECODED);
+                for (int i = 0, slot = at + 2; i < slots.length; i++, slot = doc.tapeNext(slot)) {
+                    slots[i] = slot;
+                }
+            }
+            Object val = values[index];
+            if (val == UNDECODED) {
+                val = doc.lazyValue(slots[index]);
+                values[index] = val;
             }
+            return val;
         }
-        return counts;
     }
 
-    private static String nextString(Java2Json p) {
-        int mode = MODE_WHITESPACE;
-        StringBuilder buf = new StringBuilder();
-        for (int i = p.pos; i < p.json.length; i++) {
-            p.pos++;
-            char c = p.json[i];
-            switch (mode) {
-                case MODE_WHITESPACE:
-                    if (c == '"') {
-                        mode = MODE_NORMAL;
-                    } else if (!isWhitespace(c)) {
-                        throw new RuntimeException("json expecting double-quote: " + c);
+    /**
+     * Read-only Map view over a JSON object recorded by parseLazy().  Keys are decoded
+     * (through the document's symbol table) the first time the map is used, values
+     * only when they are read.
+     */
+    @SuppressWarnings("rawtypes")
+    private static class LazyMap extends AbstractMap {
+        private final Java2Json doc;
+        private final int at;
+        private String[] keys;
+        private int[] slots;
+        private Object[] values;
+        private Map<String, Integer> index;
+        private Set entrySet;
+
+        LazyMap(Java2Json doc, int at) {
+            this.doc = doc;
+            this.at = at;
+        }
+
+        private void decodeKeys() {
+            if (keys != null) {
+                return;
+            }
+            int count = doc.tapeCount(at);
+            String[] k = new String[count];
+            int[] s = new int[count];
+            if (count > 8) {
+                index = new HashMap<String, Integer>(count * 2);
+            }
+            int size = 0;
+            for (int i = 0, slot = at + 2; i < count; i++) {
+                String key = doc.lazyKey(slot);
+                slot += 2;
+                // Duplicate keys behave as in parse():  first position, last value.
+                int dup = find(k, size, key);
+                if (dup >= 0) {
+                    s[dup] = slot;
+                } else {
+                    k[size] = key;
+                    s[size] = slot;
+                    if (index != null) {
+                        index.put(key, size);
                     }
-                    break;
-                case MODE_NORMAL:
-                    if (c == '\\') {
-                        mode = MODE_BACKSLASH;
-                    } else if (c == '"') {
-                        return buf.toString();
-                    } else {
-                        if (Character.isISOControl(c)) {
-                            StringBuilder hex = new StringBuilder(Integer.toHexString(c));
-                            if ("7f".equalsIgnoreCase(hex.toString())) {
-                                buf.append(c);
-                            } else {
-                                for (int j = hex.length(); j < 4; j++) {
-                                    hex.insert(0, "0");
-                                }
-                                throw new RuntimeException("control characters in string literal must be escaped: \\u" + hex);
-                            }
-                        } else if (c == '\b' || c == '\f' || c == '\n' || c == '\r' || c == '\t') {
-                            throw new RuntimeException("json string literal invalid character: " + c);
-                        } else {
-                            buf.append(c);
-                        }
+                    size++;
+                }
+                slot = doc.tapeNext(slot);
+            }
+            keys = size == count ? k : Arrays.copyOf(k, size);
+            slots = size == count ? s : Arrays.copyOf(s, size);
+            values = new Object[size];
+            Arrays.fill(values, UNDECODED);
+        }
+
+        private int find(String[] k, int size, Object key) {
+            if (index != null) {
+                Integer i = index.get(key);
+                return i != null ? i : -1;
+            }
+            for (int i = 0; i < size; i++) {
+                if (k[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private Object value(int i) {
+            Object val = values[i];
+            if (val == UNDECODED) {
+                val = doc.lazyValue(slots[i]);
+                values[i] = val;
+            }
+            return val;
+        }
+
+        public int size() {
+            decodeKeys();
+            return keys.length;
+        }
+
+        public boolean containsKey(Object key) {
+            decodeKeys();
+            return find(keys, keys.length, key) >= 0;
+        }
+
+        public Object get(Object key) {
+            decodeKeys();
+            int i = find(keys, keys.length, key);
+            return i >= 0 ? value(i) : null;
+        }
+
+        public Set entrySet() {
+            if (entrySet == null) {
+                entrySet = new AbstractSet() {
+                    public int size() {
+                        return LazyMap.this.size();
                     }
-                    break;
-                case MODE_BACKSLASH:
-                    switch (c) {
-                        case '/':
-                            buf.append('/');
-                            break;
-                        case 'b':
-                            buf.append('\b');
-                            break;
-                        case 'f':
-                            buf.append('\f');
-                            break;
-                        case 'n':
-                            buf.append('\n');
-                            break;
-                        case 'r':
-                            buf.append('\r');
-                            break;
-                        case 't':
-                            buf.append('\t');
-                            break;
-                        case '"':
-                            buf.append('"');
-                            break;
-                        case '\\':
-                            buf.append('\\');
-                            break;
-                        case 'u':
-                            StringBuilder hex = new StringBuilder();
-                            for (int j = 0; j < 4; j++) {
-                                try {
-                                    char hexChar = p.json[p.pos++];
-                                    if (isHex(hexChar)) {
-                                        hex.append(hexChar);
-                                    } else {
-                                        throw new RuntimeException("invalid \\u encoded character (must be hex): " + hexChar);
-                                    }
-                                } catch (ArrayIndexOutOfBoundsException aioobe) {
-                                    throw new RuntimeException("\\u encoded literal ran out of string to parse");
+
+                    public Iterator iterator() {
+                        decodeKeys();
+                        return new Iterator() {
+                            private int i;
+
+                            public boolean hasNext() {
+                                return i < keys.length;
+                            }
+
+                            public Object next() {
+                                if (i >= keys.length) {
+                                    throw new NoSuchElementException();
                                 }
+                                return new LazyEntry(i++);
                             }
-                            buf.append((char) Integer.parseInt(hex.toString(), 16));
-                            i += 4;
-                            break;
-                        default:
-                            throw new RuntimeException("invalid backslash protected character: " + c);
+                        };
                     }
-                    mode = MODE_NORMAL;
-                    break;
+                };
             }
+            return entrySet;
         }
-        throw new RuntimeException("never found literal string terminator \"");
-    }
 
-    private static boolean isHex(char c) {
-        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
-    }
+        private class LazyEntry implements Map.Entry {
+            private final int i;
 
-    private static boolean isWhitespace(char c) {
-        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
-    }
+            LazyEntry(int i) {
+                this.i = i;
+            }
 
-    private static boolean contains(String string, String thing) {
-        return string.indexOf(thing) >= 0;
-    }
+            public Object getKey() {
+                return keys[i];
+            }
 
-    private static StringBuilder prettyPrint(
-            final boolean pretty, final Object objParam, final int level, final StringBuilder buf
-    ) {
-        Iterator it;
-        final Object obj;
-        if (objParam instanceof Object[]) {
-            Object[] objs = (Object[]) objParam;
-            obj = Arrays.asList(objs);
-        } else {
-            obj = objParam;
-        }
+            public Object getValue() {
+                return value(i);
+            }
 
-        if (obj instanceof Map) {
-            Map m = (Map) obj;
-            it = m.entrySet().iterator();
-        } else if (obj instanceof Collection) {
-            Collection l = (Collection) obj;
-            it = l.iterator();
-        } else {
-            it = Collections.singleton(obj).iterator();
-        }
+            public Object setValue(Object value) {
+                throw new UnsupportedOperationException();
+            }
 
-        while (it.hasNext()) {
-            Object o = it.next();
-            Object val = o;
-            if (val instanceof Object[]) {
-                Object[] objs = (Object[]) val;
-                val = Arrays.asList(objs);
+            public boolean equals(Object o) {
+                if (!(o instanceof Map.Entry)) {
+                    return false;
+                }
+                Map.Entry e = (Map.Entry) o;
+                Object v = getValue();
+                return keys[i].equals(e.getKey()) && (v == null ? e.getValue() == null : v.equals(e.getValue()));
             }
 
-            if (pretty) {
-                buf.append('\n');
-                indent(buf, level);
+            public int hashCode() {
+                Object v = getValue();
+                return keys[i].hashCode() ^ (v == null ? 0 : v.hashCode());
             }
-            if (o instanceof Map.Entry) {
-                Map.Entry me = (Map.Entry) o;
-                Object keyObj = me.getKey();
-                String key;
-                if (keyObj instanceof String) {
-                    key = (String) keyObj;
-                } else {
-                    key = String.valueOf(keyObj);
-                }
-                buf.append('"');
-                jsonSafe(key, buf);
-                buf.append('"').append(':');
-                val = me.getValue();
-                if (val instanceof Object[]) {
-                    Object[] objs = (Object[]) val;
-                    val = Arrays.asList(objs);
-                }
+
+            public String toString() {
+                return keys[i] + "=" + getValue();
             }
+        }
+    }
 
-            if (val == null || val instanceof Boolean || val instanceof Number) {
-                jsonSafe(val, buf);
-            } else if (val instanceof Collection) {
-                buf.append('[');
-                int lenBefore = buf.length();
-                prettyPrint(pretty, val, level + 1, buf);
-                if (pretty) {
-                    int lenAfter = buf.length();
-                    if (lenBefore < lenAfter) {
-                        buf.append('\n');
-                        indent(buf, level);
-                    }
+    /**
+     * The values parsed from one chunk of JSON Lines, and the first error, if any.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static class LinesChunk {
+        private final List values = new ArrayList();
+        private byte[] utf8;
+        private int lines;
+        private RuntimeException error;
+        private int errorLine;
+
+        /**
+         * Parses every line of utf8[0..len), where len ends just past a newline
+         * (or at the end of input).  The lines share one symbol table.
+         */
+        static LinesChunk parse(byte[] utf8, int len) {
+            LinesChunk chunk = new LinesChunk();
+            chunk.utf8 = utf8;
+            Options opts = new Options().keys(new SymbolTable());
+            int start = 0;
+            while (start < len) {
+                int end = start;
+                while (end < len && utf8[end] != '\n') {
+                    end++;
                 }
-                buf.append(']');
-            } else if (val instanceof Map) {
-                buf.append('{');
-                int lenBefore = buf.length();
-                prettyPrint(pretty, val, level + 1, buf);
-                if (pretty) {
-                    int lenAfter = buf.length();
-                    if (lenBefore < lenAfter) {
-                        buf.append('\n');
-                        indent(buf, level);
+                chunk.lines++;
+                int i = start;
+                while (i < end && isWhitespace((char) utf8[i])) {
+                    i++;
+                }
+                if (i < end) {
+                    try {
+                        chunk.values.add(Java2Json.parse(utf8, start, end - start, opts));
+                    } catch (RuntimeException re) {
+                        chunk.error = re;
+                        chunk.errorLine = chunk.lines;
+                        return chunk;
                     }
                 }
-                buf.append('}');
-            } else {
-                buf.append('"');
-                jsonSafe(val, buf);
-                buf.append('"');
-            }
-            if (it.hasNext()) {
-                buf.append(',');
+                start = end + 1;
             }
+            return chunk;
         }
-        return buf;
     }
 
-    private static StringBuilder indent(StringBuilder buf, int level) {
-        for (int i = 0; i < level; i++) {
-            buf.append("  ");
+    /**
+     * Reads chunks of JSON Lines, keeps a bounded number of them being parsed on
+     * the common ForkJoinPool, and hands out the results in order.
+     */
+    private static class LineIterator implements Iterator<Object>, Runnable {
+        private final InputStream in;
+        private final ArrayDeque<Future<LinesChunk>> pending = new ArrayDeque<Future<LinesChunk>>();
+        private final int maxPending = 2 * ForkJoinPool.getCommonPoolParallelism();
+        // Chunk buffers whose lines have been parsed, for reuse.
+        private final ArrayDeque<byte[]> free = new ArrayDeque<byte[]>();
+        private boolean closeInput;
+        private byte[] carry = new byte[0];
+        private int carryLen;
+        private boolean eof;
+        private LinesChunk current;
+        private int index;
+        private long linesBefore;
+
+        LineIterator(InputStream in) {
+            this.in = in;
         }
-        return buf;
-    }
 
-    private static void jsonSafe(Object o, StringBuilder buf) {
-        final String s;
-        if (o == null) {
-            buf.append("null");
-            return;
-        } else if (o instanceof Boolean || o instanceof Number) {
-            String val = o.toString();
-            if ("Infinity".equals(val)) {
-                val = "1e99999";
-            } else if ("-Infinity".equals(val)) {
-                val = "-1e99999";
-            }
-            buf.append(val);
-            return;
-        } else if (o instanceof Map || o instanceof Collection) {
-            throw new RuntimeException("cannot make Map or Collection into json string literal: " + o);
-        } else if (o instanceof String) {
-            s = (String) o;
-        } else {
-            s = String.valueOf(o);
+        public boolean hasNext() {
+            while (current == null || index >= current.values.size()) {
+                if (current != null && current.error != null) {
+                    LinesChunk failed = current;
+                    current = null;
+                    run();
+                    throw new RuntimeException("line " + (linesBefore + failed.errorLine) + ": " + failed.error.getMessage(), failed.error);
+                }
+                if (current != null) {
+                    linesBefore += current.lines;
+                }
+                submit();
+                Future<LinesChunk> next = pending.poll();
+                if (next == null) {
+                    run();
+                    return false;
+                }
+                try {
+                    current = next.get();
+                    if (current.utf8.length == LINES_CHUNK_SIZE) {
+                        free.add(current.utf8);
+                    }
+                    current.utf8 = null;
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(ie);
+                } catch (ExecutionException ee) {
+                    throw new RuntimeException(ee.getCause());
+                }
+                index = 0;
+            }
+            return true;
         }
 
-        for (int i = 0; i < s.length(); i++) {
-            char c = s.charAt(i);
-            switch (c) {
-                case '\b':
-                    buf.append("\\b");
-                    break;
-                case '\f':
-                    buf.append("\\f");
-                    break;
-                case '\n':
-                    buf.append("\\n");
-                    break;
-                case '\r':
-                    buf.append("\\r");
-                    break;
-                case '\t':
-                    buf.append("\\t");
-                    break;
-                case '\\':
-                    buf.append("\\\\");
-                    break;
-                case '"':
-                    buf.append("\\\"");
-                    break;
-                default:
-                    // We're not interested in control characters U+0000 to U+001F aside from
-                    // the allowed ones above.
-                    if (Character.isISOControl(c)) {
-                        String hex = Integer.toHexString(c);
-                        buf.append("\\u");
-                        for (int j = hex.length(); j < 4; j++) {
-                            buf.append('0');
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.values.get(index++);
+        }
+
+        /**
+         * Reads and submits chunks until maxPending are in flight or the input is exhausted.
+         * Once one chunk is in flight, it only reads on while the input has more
+         * available, and a chunk is cut short at its last complete line when the input
+         * has nothing more for now, so lines from a slow source (a socket or pipe) are
+         * handed out as they arrive.
+         */
+        private void submit() {
+            try {
+                while (!eof && pending.size() < maxPending && (pending.isEmpty() || in.available() > 0)) {
+                    byte[] buf = carryLen * 2 <= LINES_CHUNK_SIZE && !free.isEmpty()
+                            ? free.poll() : new byte[Math.max(LINES_CHUNK_SIZE, carryLen * 2)];
+                    System.arraycopy(carry, 0, buf, 0, carryLen);
+                    int len = carryLen;
+                    int cut = 0;
+                    while (true) {
+                        int n = in.read(buf, len, buf.length - len);
+                        if (n < 0) {
+                            eof = true;
+                            cut = len;
+                            break;
+                        }
+                        // The carried bytes (and those scanned before) hold no newline.
+                        int newline = lastNewline(buf, len, len + n);
+                        len += n;
+                        if (newline > 0) {
+                            cut = newline;
+                        }
+                        if (cut > 0 && (len == buf.length || in.available() == 0)) {
+                            break;
+                        } else if (len == buf.length) {
+                            buf = Arrays.copyOf(buf, buf.length * 2);
                         }
-                        buf.append(hex);
-                    } else {
-                        buf.append(c);
                     }
-                    break;
+                    carryLen = len - cut;
+                    if (carry.length < carryLen) {
+                        carry = new byte[Math.max(carryLen, LINES_CHUNK_SIZE)];
+                    }
+                    System.arraycopy(buf, cut, carry, 0, carryLen);
+                    final byte[] chunk = buf;
+                    final int chunkLen = cut;
+                    if (chunkLen > 0) {
+                        pending.add(ForkJoinPool.commonPool().submit(() -> LinesChunk.parse(chunk, chunkLen)));
+                    }
+                }
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+
+        /**
+         * @return the offset just past the last newline in buf[from..to), or 0 if there is none.
+         */
+        private static int lastNewline(byte[] buf, int from, int to) {
+            for (int i = to - 1; i >= from; i--) {
+                if (buf[i] == '\n') {
+                    return i + 1;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Closes the iterator (Stream.onClose):  cancels chunks still being parsed,
+         * and closes the input if this iterator opened it.
+         */
+        public void run() {
+            eof = true;
+            for (Future<LinesChunk> f : pending) {
+                f.cancel(false);
+            }
+            pending.clear();
+            if (closeInput) {
+                try {
+                    in.close();
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
             }
         }
     }
-}
\ No newline at end of file
+}
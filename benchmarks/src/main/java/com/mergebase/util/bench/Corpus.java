@@ -0,0 +1,36 @@
+package com.mergebase.util.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Loads the benchmark documents from src/main/resources/corpus (see GenerateCorpus):
+ * <ul>
+ * <li>example:  the small API-style object printed by Example.java.</li>
+ * <li>large-array:  a top-level array of 2,000 API-style objects.</li>
+ * <li>numbers:  time series of longs and doubles.</li>
+ * <li>escapes:  strings full of quotes, backslashes, control chars and non-ASCII.</li>
+ * <li>deep:  objects and arrays nested 400 levels deep.</li>
+ * </ul>
+ */
+public class Corpus {
+
+    public static String load(String name) {
+        try (InputStream in = Corpus.class.getResourceAsStream("/corpus/" + name + ".json")) {
+            if (in == null) {
+                throw new IllegalArgumentException("no such corpus document: " + name);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            for (int n; (n = in.read(buf)) >= 0; ) {
+                out.write(buf, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.mergebase.util.bench;
+
+import com.mergebase.util.Java2Json;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prints the heap retained per corpus document as parse() returns it (JsonMaps) and
+ * with every Map replaced by a LinkedHashMap, as parse() used to return it.  Both
+ * hold the very same Strings, numbers and Lists, so the difference is the Maps alone.
+ * The last column is parse() with a StringPool shared by all the copies, as a cache
+ * of many documents of one kind would use it.
+ * <p>
+ * Usage (after "mvn package"):
+ * java -cp target/benchmarks.jar com.mergebase.util.bench.Footprint
+ */
+public class Footprint {
+
+    private static final String[] CORPUS = {"example", "large-array", "numbers", "escapes", "deep"};
+
+    public static void main(String[] args) {
+        System.out.printf("%-12s %14s %14s %8s %14s%n", "corpus", "JsonMap", "LinkedHashMap", "ratio", "StringPool");
+        for (String name : CORPUS) {
+            String json = Corpus.load(name);
+            int copies = Math.max(10, 2000000 / json.length());
+            Object[] docs = new Object[copies];
+            long base = usedHeap();
+            for (int i = 0; i < copies; i++) {
+                docs[i] = Java2Json.parse(json);
+            }
+            long compact = usedHeap() - base;
+            for (int i = 0; i < copies; i++) {
+                docs[i] = toLinkedHashMaps(docs[i]);
+            }
+            long linked = usedHeap() - base;
+            Java2Json.Options pooled = new Java2Json.Options().values(new Java2Json.StringPool());
+            for (int i = 0; i < copies; i++) {
+                docs[i] = Java2Json.parse(json, pooled);
+            }
+            long interned = usedHeap() - base;
+            System.out.printf("%-12s %14d %14d %8.2f %14d%n", name, compact / copies, linked / copies,
+                    (double) compact / linked, interned / copies);
+        }
+    }
+
+    /**
+     * @return o with its Maps rebuilt (recursively) as LinkedHashMaps; Lists are updated in place
+     */
+    private static Object toLinkedHashMaps(Object o) {
+        if (o instanceof Map) {
+            Map<Object, Object> m = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet()) {
+                m.put(e.getKey(), toLinkedHashMaps(e.getValue()));
+            }
+            return m;
+        } else if (o instanceof List) {
+            @SuppressWarnings("unchecked")
+            List<Object> l = (List<Object>) o;
+            for (int i = 0; i < l.size(); i++) {
+                l.set(i, toLinkedHashMaps(l.get(i)));
+            }
+        }
+        return o;
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,128 @@
+package com.mergebase.util.bench;
+
+import com.mergebase.util.Java2Json;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Writes the corpus documents (see Corpus).  Only needed to change the corpus:
+ * the output is checked in, and is the same on every run (fixed random seed).
+ * <p>
+ * Usage:  GenerateCorpus [directory, default src/main/resources/corpus]
+ */
+public class GenerateCorpus {
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "src/main/resources/corpus");
+        Files.createDirectories(dir);
+        Random r = new Random(20210104);
+
+        write(dir, "example", true, advisory("USN-4673-1", "January 04, 2021", "libproxy",
+                "libproxy could be made to crash or execute arbitrary code if it received a specially crafted file.",
+                Arrays.asList("CVE-2020-26154"),
+                Arrays.asList("20.10", "20.04", "18.04", "16.04"),
+                Arrays.asList("0.4.15-13ubuntu1.1", "0.4.15-10ubuntu1.2", "0.4.15-1ubuntu0.2", "0.4.11-5ubuntu1.2")));
+
+        List<Object> advisories = new ArrayList<>();
+        String[] projects = {"libproxy", "openssl", "curl", "linux", "nginx", "libxml2", "sudo", "glibc"};
+        String[] releases = {"22.04", "20.04", "18.04", "16.04"};
+        for (int i = 0; i < 2000; i++) {
+            String project = projects[r.nextInt(projects.length)];
+            List<String> cves = new ArrayList<>();
+            for (int j = r.nextInt(4); j >= 0; j--) {
+                cves.add("CVE-20" + (15 + r.nextInt(8)) + "-" + (1000 + r.nextInt(90000)));
+            }
+            List<String> versions = new ArrayList<>();
+            for (int j = 0; j < releases.length; j++) {
+                versions.add(r.nextInt(5) + "." + r.nextInt(20) + "." + r.nextInt(30) + "-" + r.nextInt(15) + "ubuntu" + r.nextInt(3) + "." + r.nextInt(5));
+            }
+            advisories.add(advisory("USN-" + (4000 + i) + "-1", "March " + (1 + r.nextInt(28)) + ", 2022", project,
+                    project + " could be made to crash or expose sensitive information if it processed crafted input (#" + i + ").",
+                    cves, Arrays.asList(releases), versions));
+        }
+        write(dir, "large-array", false, advisories);
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        List<Object> series = new ArrayList<>();
+        for (int s = 0; s < 20; s++) {
+            Map<String, Object> one = new LinkedHashMap<>();
+            one.put("metric", "host" + s + ".cpu.utilization");
+            one.put("unit", "percent");
+            List<Object> points = new ArrayList<>();
+            long ts = 1641024000000L;
+            double v = r.nextDouble() * 100;
+            for (int i = 0; i < 1000; i++) {
+                ts += 10000 + r.nextInt(50);
+                v = Math.max(0, Math.min(100, v + r.nextGaussian()));
+                points.add(Arrays.asList(ts, v, (long) r.nextInt(1 << 20), Math.round(v * 100) / 100.0));
+            }
+            one.put("points", points);
+            series.add(one);
+        }
+        metrics.put("series", series);
+        write(dir, "numbers", false, metrics);
+
+        Map<String, Object> escapes = new LinkedHashMap<>();
+        List<Object> strings = new ArrayList<>();
+        String[] pieces = {"\"quoted\"", "back\\slash", "C:\\Program Files\\", "line\nbreak", "tab\there", "\r\n",
+                "\u0001\u001f", "caf\u00e9", "na\u00efve", "\u65e5\u672c\u8a9e", "\ud83d\ude00", "</script>", "plain text "};
+        for (int i = 0; i < 3000; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = 5 + r.nextInt(20); j > 0; j--) {
+                sb.append(pieces[r.nextInt(pieces.length)]);
+            }
+            strings.add(sb.toString());
+        }
+        escapes.put("strings", strings);
+        write(dir, "escapes", false, escapes);
+
+        Object deep = "bottom";
+        for (int i = 0; i < 400; i++) {
+            if (i % 2 == 0) {
+                deep = new ArrayList<>(Arrays.asList(i, deep, "level " + i));
+            } else {
+                Map<String, Object> m = new LinkedHashMap<>();
+                m.put("depth", (long) i);
+                m.put("child", deep);
+                deep = m;
+            }
+        }
+        write(dir, "deep", false, deep);
+    }
+
+    private static Map<String, Object> advisory(
+            String id, String date, String project, String description, List<String> cves,
+            List<String> releases, List<String> versions
+    ) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("id", id);
+        map.put("date", date);
+        map.put("project", project);
+        map.put("description", description);
+        map.put("cves", cves);
+        List<Object> safeVersions = new ArrayList<>();
+        for (int i = 0; i < releases.size(); i++) {
+            Map<String, Object> safe = new LinkedHashMap<>();
+            safe.put("ubuntu", releases.get(i));
+            safe.put("pkg", project + "1v5");
+            safe.put("v", versions.get(i));
+            safeVersions.add(safe);
+        }
+        map.put("safeVersions", safeVersions);
+        return map;
+    }
+
+    private static void write(Path dir, String name, boolean pretty, Object doc) throws IOException {
+        Files.write(dir.resolve(name + ".json"), (Java2Json.format(pretty, doc) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
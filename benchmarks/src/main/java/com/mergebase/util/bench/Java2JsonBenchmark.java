@@ -0,0 +1,78 @@
+package com.mergebase.util.bench;
+
+import com.mergebase.util.Java2Json;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and formatting throughput over each corpus document (see Corpus).
+ * Run with "-prof gc" to see allocation per operation as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Java2JsonBenchmark {
+
+    private static final Java2Json.Options LAZY_NUMBERS = new Java2Json.Options().lazyNumbers(true);
+
+    @Param({"example", "large-array", "numbers", "escapes", "deep"})
+    public String corpus;
+
+    private String json;
+    private Object parsed;
+
+    @Setup
+    public void setup() {
+        json = Corpus.load(corpus);
+        parsed = Java2Json.parse(json);
+    }
+
+    @Benchmark
+    public Object parse() {
+        return Java2Json.parse(json);
+    }
+
+    @Benchmark
+    public Object parseLazyNumbers() {
+        return Java2Json.parse(json, LAZY_NUMBERS);
+    }
+
+    @Benchmark
+    public String roundTrip() {
+        return Java2Json.format(false, Java2Json.parse(json));
+    }
+
+    @Benchmark
+    public String roundTripLazyNumbers() {
+        return Java2Json.format(false, Java2Json.parse(json, LAZY_NUMBERS));
+    }
+
+    @Benchmark
+    public String formatCompact() {
+        return Java2Json.format(false, parsed);
+    }
+
+    @Benchmark
+    public String formatPretty() {
+        return Java2Json.format(true, parsed);
+    }
+
+    @Benchmark
+    public String makePretty() {
+        return Java2Json.makePretty(json);
+    }
+}
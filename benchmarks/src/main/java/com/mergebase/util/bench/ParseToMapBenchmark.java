@@ -0,0 +1,45 @@
+package com.mergebase.util.bench;
+
+import com.mergebase.util.Java2Json;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * parseToMap() throughput over the object-rooted corpus documents (large-array is
+ * a top-level array, so it has no Map to parse to).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseToMapBenchmark {
+
+    @Param({"example", "numbers", "escapes", "deep"})
+    public String corpus;
+
+    private String json;
+
+    @Setup
+    public void setup() {
+        json = Corpus.load(corpus);
+    }
+
+    @Benchmark
+    public Map parseToMap() {
+        return Java2Json.parseToMap(json);
+    }
+}
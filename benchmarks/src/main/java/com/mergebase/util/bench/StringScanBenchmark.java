@@ -0,0 +1,66 @@
+package com.mergebase.util.bench;
+
+import com.mergebase.util.Java2Json;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An array of plain ASCII strings of a given length, parsed from a String (scanned
+ * a char at a time) and from UTF-8 bytes (scanned eight bytes at a time once a
+ * string is long enough), to show where the word-at-a-time scan starts to pay.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StringScanBenchmark {
+
+    @Param({"4", "8", "16", "64", "256"})
+    public int length;
+
+    private String json;
+    private byte[] utf8;
+
+    @Setup
+    public void setup() {
+        Random r = new Random(length);
+        StringBuilder buf = new StringBuilder("[");
+        while (buf.length() < 256 * 1024) {
+            if (buf.length() > 1) {
+                buf.append(',');
+            }
+            buf.append('"');
+            for (int i = 0; i < length; i++) {
+                buf.append((char) ('a' + r.nextInt(26)));
+            }
+            buf.append('"');
+        }
+        json = buf.append(']').toString();
+        utf8 = json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Object parseString() {
+        return Java2Json.parse(json);
+    }
+
+    @Benchmark
+    public Object parseBytes() {
+        return Java2Json.parse(utf8, 0, utf8.length);
+    }
+}
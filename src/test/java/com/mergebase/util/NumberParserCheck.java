@@ -0,0 +1,275 @@
+package com.mergebase.util;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Differential check of the number parser (scanNumber(), and nextJsonNumber() under
+ * Options.lazyNumbers()) against the string-based parser it replaced, kept below
+ * as legacyNumber():  every literal must be accepted or rejected exactly as before,
+ * and accepted ones must give an equal Long or Double.  Error messages may differ.
+ * <p>
+ * Runs the boundary cases below, then random literals from a fixed seed, through
+ * String, byte[] and Reader input, both as a whole document and inside an array.
+ * Exits with status 1 on any mismatch.
+ * <p>
+ * Usage (after "mvn test-compile"):
+ * java -cp target/classes:target/test-classes com.mergebase.util.NumberParserCheck [random literals]
+ */
+public class NumberParserCheck {
+
+    private static final String REJECTED = "rejected";
+
+    private static final String[] CASES = {
+            // Zeros, signs and leading zeros
+            "0", "-0", "00", "-00", "01", "-01", "0.0", "-0.0", "00.5", "0e0", "0E+1", "-0e-1", "0.0e0",
+            "-", "--1", "+1", "-+1", "1-", "1+",
+            // Incomplete decimals and exponents
+            "1.", "-1.", ".5", "-.5", "1.e5", "1.5.5", "1..5",
+            "1e", "1E", "1e+", "1e-", "1E+", "-1e-", "1e+-5", "1e5e5", "1e5.5", "1ee5", "1e.5",
+            // Around Long.MAX_VALUE and Long.MIN_VALUE
+            "9223372036854775806", "9223372036854775807", "9223372036854775808", "9223372036854775809",
+            "92233720368547758070", "-9223372036854775807", "-9223372036854775808", "-9223372036854775809",
+            "-92233720368547758080", "18446744073709551616", "99999999999999999999999999999",
+            // The exact fast path:  up to 18 significant digits, exponents within +/-22
+            "123456789012345678.0", "1234567890123456789.0", "0.123456789012345678", "0.1234567890123456789",
+            "12345678901234567.8", "1.00000000000000000000001", "100000000000000000000.0",
+            "9007199254740992.0", "9007199254740993.0", "9007199254740993e1", "4503599627370497.5",
+            "1e22", "1e23", "1e-22", "1e-23", "1.5e22", "1.5e23", "-1e22", "-1e-23", "123e20", "123e21",
+            "0.000000000000000000001", "0.0000000000000000000001", "1.7976931348623157e300",
+            // Parsed by the Double.parseDouble() fallback
+            "1e308", "1.7976931348623157e308", "1.7976931348623159e308", "1e309", "-1e309", "1e99999",
+            "4.9e-324", "2.4e-324", "2.5e-324", "1e-400", "2.2250738585072014e-308", "2.2250738585072011e-308",
+            "0.1e400", "123456789012345678901234567890.123456789", "1e0000000000000000000001",
+            "3.141592653589793238462643383279502884197", "0.30000000000000000000000000000001",
+    };
+
+    public static void main(String[] args) {
+        int randomLiterals = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int checked = 0;
+        int mismatches = 0;
+        for (String literal : CASES) {
+            mismatches += check(literal);
+            checked++;
+        }
+        Random r = new Random(20201224);
+        for (int i = 0; i < randomLiterals; i++) {
+            mismatches += check(randomLiteral(r));
+            checked++;
+        }
+        System.out.println(checked + " literals, " + mismatches + " mismatches");
+        if (mismatches > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return the number of ways the current parser disagrees with legacyNumber() on literal
+     */
+    private static int check(String literal) {
+        char c = literal.charAt(0);
+        // Only '-' and digits ever started a number literal (anything else is another token).
+        String want = c == '-' || (c >= '0' && c <= '9') ? describe(() -> legacyNumber(literal)) : REJECTED;
+        int mismatches = 0;
+        Java2Json.Options lazy = new Java2Json.Options().lazyNumbers(true);
+        for (String doc : new String[]{literal, "[" + literal + "]", "[ " + literal + " ,1]"}) {
+            byte[] utf8 = doc.getBytes(StandardCharsets.UTF_8);
+            String[] got = {
+                    describe(() -> first(Java2Json.parse(doc))),
+                    describe(() -> first(Java2Json.parse(utf8, 0, utf8.length))),
+                    describe(() -> first(parseReader(doc))),
+                    describe(() -> ((Java2Json.JsonNumber) first(Java2Json.parse(doc, lazy))).value()),
+                    describe(() -> ((Java2Json.JsonNumber) first(Java2Json.parse(utf8, 0, utf8.length, lazy))).value()),
+            };
+            for (String g : got) {
+                if (!want.equals(g)) {
+                    if (mismatches++ == 0) {
+                        System.out.println(doc + ":  expected " + want + ", got " + g);
+                    }
+                }
+            }
+        }
+        return mismatches;
+    }
+
+    private static Object first(Object o) {
+        return o instanceof List ? ((List) o).get(0) : o;
+    }
+
+    private static Object parseReader(String doc) {
+        try {
+            return Java2Json.parse(new StringReader(doc));
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    private interface Parse {
+        Object run();
+    }
+
+    private static String describe(Parse parse) {
+        try {
+            Object o = parse.run();
+            return o == null ? "null" : o.getClass().getSimpleName() + " " + o;
+        } catch (RuntimeException e) {
+            return REJECTED;
+        }
+    }
+
+    /**
+     * Mostly almost-valid literals:  an optional sign, digits (often many, to reach the
+     * long and fast-path limits), then maybe a fraction and an exponent, with the odd
+     * character dropped, doubled or swapped in.
+     */
+    private static String randomLiteral(Random r) {
+        StringBuilder b = new StringBuilder();
+        if (r.nextInt(8) == 0) {
+            String alphabet = "-+.eE0123456789";
+            for (int n = 1 + r.nextInt(8); n > 0; n--) {
+                b.append(alphabet.charAt(r.nextInt(alphabet.length())));
+            }
+            return b.toString();
+        }
+        if (r.nextBoolean()) {
+            b.append('-');
+        }
+        int intDigits = r.nextInt(4) == 0 ? 15 + r.nextInt(8) : 1 + r.nextInt(6);
+        b.append(r.nextInt(10) == 0 ? 0 : 1 + r.nextInt(9));
+        for (int i = 1; i < intDigits; i++) {
+            b.append(r.nextInt(10));
+        }
+        if (r.nextInt(3) > 0) {
+            b.append('.');
+            for (int i = r.nextInt(4) == 0 ? 15 + r.nextInt(8) : r.nextInt(6); i > 0; i--) {
+                b.append(r.nextInt(10));
+            }
+        }
+        if (r.nextBoolean()) {
+            b.append(r.nextBoolean() ? 'e' : 'E');
+            int sign = r.nextInt(3);
+            if (sign > 0) {
+                b.append(sign == 1 ? '-' : '+');
+            }
+            int exp = r.nextInt(4) == 0 ? 300 + r.nextInt(40) : r.nextInt(30);
+            if (r.nextInt(20) != 0) {
+                b.append(exp);
+            }
+        }
+        if (r.nextInt(10) == 0 && b.length() > 1) {
+            int at = r.nextInt(b.length());
+            switch (r.nextInt(3)) {
+                case 0:
+                    b.deleteCharAt(at);
+                    break;
+                case 1:
+                    b.insert(at, b.charAt(at));
+                    break;
+                default:
+                    b.setCharAt(at, "-+.eE0".charAt(r.nextInt(6)));
+            }
+        }
+        return b.length() == 0 ? "0" : b.toString();
+    }
+
+    /**
+     * The number parser before the single-pass rewrite (from nextNumber(), minus the
+     * scanning loop, which only ever handed it these chars):  the reference for what
+     * is accepted and what it parses to.
+     */
+    private static Number legacyNumber(String s) {
+        char char0 = s.length() > 0 ? s.charAt(0) : '_';
+        if (char0 == '+') {
+            throw new RuntimeException("number literal cannot start with plus: " + s);
+        } else if ("-".equals(s)) {
+            throw new RuntimeException("number literal cannot be negative sign by itself");
+        }
+        boolean isNegative = char0 == '-';
+
+        if (isNegative) {
+            s = s.substring(1);
+        }
+
+        if ("0".equals(s)) {
+            return 0L;
+        }
+
+        if (s.startsWith(".")) {
+            throw new RuntimeException("number literal cannot start with decimal point: " + s);
+        }
+        if (!s.startsWith("0.") && !s.startsWith("0e") && !s.startsWith("0E")) {
+            if (s.startsWith("0")) {
+                throw new RuntimeException("number literal cannot have leading zero: " + s);
+            }
+        }
+
+        if (s.contains(".e") || s.contains(".E")) {
+            throw new RuntimeException("number literal invalid exponential: " + s);
+        }
+
+        if (s.endsWith("e") || s.endsWith("E") || s.endsWith("+") || s.endsWith("-") || s.endsWith(".")) {
+            throw new RuntimeException("number literal cannot end with [eE+-.] " + s);
+        }
+
+        int periods = 0;
+        int minuses = 0;
+        int plusses = 0;
+        int eTotal = 0;
+        for (int i = 0; i < s.length(); i++) {
+            switch (s.charAt(i)) {
+                case '.':
+                    periods++;
+                    break;
+                case '-':
+                    minuses++;
+                    break;
+                case '+':
+                    plusses++;
+                    break;
+                case 'E':
+                case 'e':
+                    eTotal++;
+                    break;
+                default:
+                    break;
+            }
+        }
+        int plussesAndMinuses = plusses + minuses;
+
+        if (plussesAndMinuses > 0) {
+            if (plussesAndMinuses > 1) {
+                throw new RuntimeException("invalid number literal - too many plusses/minuses: " + s);
+            } else {
+                boolean isValidPlus = false;
+                boolean isValidMinus = minuses > 0 && (s.contains("e-") || s.contains("E-"));
+                if (!isValidMinus) {
+                    isValidPlus = plusses > 0 && (s.contains("e+") || s.contains("E+"));
+                }
+                if (!isValidPlus && !isValidMinus) {
+                    throw new RuntimeException("invalid number literal: " + s);
+                }
+            }
+        }
+
+        if (periods > 1 || eTotal > 1) {
+            throw new RuntimeException("invalid number literal: " + s);
+        }
+
+        if (isNegative) {
+            s = "-" + s;
+        }
+        if (periods == 1 || eTotal == 1) {
+            return Double.valueOf(s);
+        } else {
+            try {
+                return Long.valueOf(s);
+            } catch (NumberFormatException nfe) {
+                return Double.valueOf(s);
+            }
+        }
+    }
+}